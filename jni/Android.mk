@@ -71,7 +71,9 @@ LOCAL_C_INCLUDES += \
 
 # LD libraries
 LOCAL_LDLIBS += \
-	-llog
+	-llog \
+	-ljnigraphics \
+	-ldl
 
 # Name of the library to build
 LOCAL_MODULE := libArduboyEmulatorNative
@@ -22,6 +22,8 @@
 #include <stdio.h>
 #include <string.h>
 #include <stdlib.h>
+#include <dlfcn.h>
+#include <elf.h>
 
 #include <sim_avr.h>
 #include <avr_eeprom.h>
@@ -72,12 +74,76 @@ static const ssd1306_wiring_t ssd1306_wiring =
 	.reset.pin = 7,
 };
 
-static struct arduboy_avr_mod_state {
+#define BUSY_LOOP_MAX_CYCLES (1024)
+#define BUSY_LOOP_MAX_BACKOFF (64)
+
+enum busy_loop_phase_e {
+	BUSY_LOOP_IDLE = 0,	// no candidate
+	BUSY_LOOP_REGS,		// registers have been saved at the head of the candidate
+	BUSY_LOOP_RAM,		// registers have matched once, SRAM has been saved too
+};
+
+struct busy_loop_state {
+	int phase;
+	avr_flashaddr_t pc;	// head of the candidate loop
+	avr_cycle_count_t cycle;	// cycle count when the head was passed last
+	int backoff, backoff_count;
+	uint8_t regs[32];
+	uint8_t sreg[8];
+	uint8_t sp[2];
+	uint8_t *ram;
+	int ram_size;
+};
+
+enum insn_kind_e {
+	INSN_UNDECODED = 0,
+	INSN_SLOW,		// executed by simavr
+	INSN_NOP, INSN_MOV, INSN_MOVW, INSN_LDI,
+	INSN_ADD, INSN_ADC, INSN_SUB, INSN_SBC, INSN_SUBI, INSN_SBCI,
+	INSN_CP, INSN_CPC, INSN_CPI,
+	INSN_AND, INSN_ANDI, INSN_OR, INSN_ORI, INSN_EOR, INSN_INC, INSN_DEC,
+	INSN_ADIW, INSN_SBIW, INSN_RJMP, INSN_BRBS, INSN_BRBC,
+};
+
+struct insn_rec {
+	uint16_t op;	// opcode which this entry was decoded from
+	uint8_t kind;	// insn_kind_e
+	uint8_t d, r;	// registers, or SREG bit for branches in r
+	int16_t k;		// immediate, or relative offset in words
+};
+
+#define BLOCK_MAX_INSNS (64)
+#define BLOCK_MIN_INSNS (2)
+#define BLOCK_HOT_COUNT (8)
+
+struct block {
+	uint32_t flash_gen;	// flash_gen of the module when translated
+	int count;
+	struct insn_rec insns[];
+};
+
+struct arduboy_avr_mod_state {
 	struct avr_t *avr;
 	ssd1306_t ssd1306;
 	bool yield, is_refresh_postpone;
 	uint8_t lumamap[OLED_HEIGHT_PX][OLED_WIDTH_PX];
-} mod_s;
+	uint32_t vram_hash, display_hash;
+	bool is_display_hash_valid;
+	struct arduboy_avr_ctrl *ctrl, *rendered_ctrl, *rendered_bits_ctrl;
+	avr_cycle_count_t idle_cycles;
+	bool is_busy_skip;
+	struct busy_loop_state loop;
+	avr_cycle_count_t busy_cycles;
+	bool is_predecode;
+	struct insn_rec *insn_cache;	// indexed by word address
+	uint32_t insn_cache_size;
+	bool is_translate;
+	struct block **blocks;		// indexed by word address of the head
+	uint8_t *block_hits;
+	uint32_t flash_gen;		// incremented when the flash may have been rewritten
+	uint32_t rom_hash;
+	uint8_t *state_backup;	// allocated on the first load of a state
+};
 
 typedef struct {
 	avr_t			core;
@@ -100,22 +166,51 @@ typedef struct {
 static void android_logger(avr_t * avr, const int level, const char * format, va_list ap)
 {
 	if (!avr || avr->log >= level) {
+#ifdef __ANDROID__
 		int android_level = ANDROID_LOG_SILENT - level;
 		__android_log_vprint(android_level, LOG_TAG, format, ap);
+#else
+		vfprintf(stderr, format, ap);
+#endif
 	}
 }
 
-static void update_lumamap(struct ssd1306_t *ssd1306)
+#define FNV_OFFSET_BASIS (2166136261U)
+#define FNV_PRIME (16777619U)
+
+static inline uint32_t fnv1a(uint32_t hash, uint8_t value)
+{
+	return (hash ^ value) * FNV_PRIME;
+}
+
+static void update_lumamap(struct arduboy_avr_mod_state *mod)
 {
+	struct ssd1306_t *ssd1306 = &mod->ssd1306;
+	uint32_t hash = FNV_OFFSET_BASIS;
 	for (int p = 0; p < SSD1306_VIRT_PAGES; p++) {
 		for (int c = 0; c < SSD1306_VIRT_COLUMNS; c++) {
 			uint8_t px_col = ssd1306->vram[p][c];
+			hash = fnv1a(hash, px_col);
 			for (int y = 0; y < 8; y++) {
-				mod_s.lumamap[p * 8 + y][c] = px_col & 0x1;
+				mod->lumamap[p * 8 + y][c] = px_col & 0x1;
 				px_col >>= 1;
 			}
 		}
 	}
+	mod->vram_hash = hash;
+}
+
+/* Hash of everything which affects the rendered screen */
+static uint32_t get_display_hash(struct arduboy_avr_mod_state *mod)
+{
+	struct ssd1306_t *ssd1306 = &mod->ssd1306;
+	uint32_t hash = mod->vram_hash;
+	hash = fnv1a(hash, ssd1306_get_flag(ssd1306, SSD1306_FLAG_DISPLAY_ON));
+	hash = fnv1a(hash, ssd1306_get_flag(ssd1306, SSD1306_FLAG_DISPLAY_INVERTED));
+	hash = fnv1a(hash, ssd1306_get_flag(ssd1306, SSD1306_FLAG_SEGMENT_REMAP_0));
+	hash = fnv1a(hash, ssd1306_get_flag(ssd1306, SSD1306_FLAG_COM_SCAN_NORMAL));
+	hash = fnv1a(hash, ssd1306->contrast_register);
+	return hash;
 }
 
 static inline int get_fg_colour(uint8_t invert, float opacity)
@@ -134,8 +229,13 @@ static inline float contrast_to_opacity(uint8_t contrast)
 	return contrast / 512.0 + 0.5;
 }
 
-static void render_screen(int *pixels, struct ssd1306_t *ssd1306)
+/*
+ * The colours are always grey, so the layout of ARGB (Java int) and RGBA (Android Bitmap)
+ * is the same.  "stride" is the number of pixels from one row to the next.
+ */
+static void render_screen(struct arduboy_avr_mod_state *mod, int *pixels, int stride)
 {
+	struct ssd1306_t *ssd1306 = &mod->ssd1306;
 	if (!ssd1306_get_flag(ssd1306, SSD1306_FLAG_DISPLAY_ON)) {
 		return;
 	}
@@ -158,31 +258,72 @@ static void render_screen(int *pixels, struct ssd1306_t *ssd1306)
 
 	// Render screen
 	for (int y = orig_y; y >= 0 && y < OLED_HEIGHT_PX; y += vy) {
+		int *p = pixels;
 		for (int x = orig_x; x >= 0 && x < OLED_WIDTH_PX; x += vx) {
-			*pixels++ = mod_s.lumamap[y][x] ? fg_color : bg_color;
+			*p++ = mod->lumamap[y][x] ? fg_color : bg_color;
+		}
+		pixels += stride;
+	}
+}
+
+/*
+ * Same as render_screen() but one bit per pixel, which is set if the pixel is lit.
+ * Each row takes OLED_WIDTH_PX / 8 bytes and the leftmost pixel is the MSB.
+ */
+static void render_bits(struct arduboy_avr_mod_state *mod, uint8_t *bits)
+{
+	struct ssd1306_t *ssd1306 = &mod->ssd1306;
+	if (!ssd1306_get_flag(ssd1306, SSD1306_FLAG_DISPLAY_ON)) {
+		memset(bits, 0, OLED_WIDTH_PX * OLED_HEIGHT_PX / 8);
+		return;
+	}
+	int orig_x = 0, orig_y = 0;
+	int vx = 1, vy = 1;
+	if (ssd1306_get_flag(ssd1306, SSD1306_FLAG_SEGMENT_REMAP_0)) {
+		orig_x = OLED_WIDTH_PX - 1; vx = -1;
+	}
+	if (ssd1306_get_flag(ssd1306, SSD1306_FLAG_COM_SCAN_NORMAL)) {
+		orig_y = OLED_HEIGHT_PX - 1; vy = -1;
+	}
+	uint8_t invert = ssd1306_get_flag(ssd1306, SSD1306_FLAG_DISPLAY_INVERTED) ? 1 : 0;
+	for (int y = orig_y; y >= 0 && y < OLED_HEIGHT_PX; y += vy) {
+		uint8_t byte = 0;
+		int count = 0;
+		for (int x = orig_x; x >= 0 && x < OLED_WIDTH_PX; x += vx) {
+			byte = (byte << 1) | (mod->lumamap[y][x] ^ invert);
+			if (++count == 8) {
+				*bits++ = byte;
+				count = 0;
+			}
 		}
 	}
 }
 
 static void hook_ssd1306_write_data(struct avr_irq_t *irq, uint32_t value, void *param)
 {
-	ssd1306_t *ssd1306 = (ssd1306_t *) param;
+	struct arduboy_avr_mod_state *mod = (struct arduboy_avr_mod_state *) param;
+	ssd1306_t *ssd1306 = &mod->ssd1306;
 	if (ssd1306->di_pin == SSD1306_VIRT_DATA) {
 		bool is_timing;
-		if (mod_s.is_refresh_postpone) {
+		if (mod->is_refresh_postpone) {
 			is_timing = ssd1306->cursor.page == SSD1306_VIRT_PAGES - 1 &&
 					ssd1306->cursor.column == SSD1306_VIRT_COLUMNS - 1;
 		} else {
 			is_timing = ssd1306->cursor.page == 0 && ssd1306->cursor.column == 0;
 		}
 		if (is_timing && ssd1306_get_flag(ssd1306, SSD1306_FLAG_DIRTY)) {
-			update_lumamap(ssd1306);
+			update_lumamap(mod);
 			ssd1306_set_flag(ssd1306, SSD1306_FLAG_DIRTY, 0);
 		}
 	}
 }
 
-static void dummy_sleep(avr_t *avr, avr_cycle_count_t how_long)
+/*
+ * While the core is sleeping, simavr advances avr->cycle straight to the next cycle timer
+ * (timer0 overflow, refresh() and so on) and then services pending interrupts, so nothing is
+ * interpreted cycle by cycle. Only the real time sleep of the default callback is removed here.
+ */
+static void idle_sleep(avr_t *avr, avr_cycle_count_t how_long)
 {
 	// do nothing
 }
@@ -192,7 +333,8 @@ static avr_cycle_count_t refresh(
 		avr_cycle_count_t when,
 		void *param)
 {
-	mod_s.yield = true;
+	struct arduboy_avr_mod_state *mod = (struct arduboy_avr_mod_state *) param;
+	mod->yield = true;
 	return when + avr_usec_to_cycles(avr, REFRESH_PERIOD_US);
 }
 
@@ -227,15 +369,21 @@ static inline avr_regbit_t get_tx_regbit(mcu_t *mcu)
 
 /*------------------------------------------------------------------------------------------------*/
 
-int arduboy_avr_setup(const char *hex_file_path, bool is_tuned)
+struct arduboy_avr_mod_state *arduboy_avr_setup(const char *hex_file_path, bool is_tuned)
 {
 	avr_global_logger_set(android_logger);
-	mod_s.avr = NULL;
+
+	struct arduboy_avr_mod_state *mod = calloc(1, sizeof(struct arduboy_avr_mod_state));
+	if (!mod) {
+		LOGE("Failed to allocate memory\n");
+		return NULL;
+	}
 
 	avr_t *avr = avr_make_mcu_by_name("atmega32u4");
 	if (!avr) {
+		free(mod);
 		LOGE("Failed to make AVR\n");
-		return -1;
+		return NULL;
 	}
 	avr_init(avr);
 
@@ -255,8 +403,9 @@ int arduboy_avr_setup(const char *hex_file_path, bool is_tuned)
 		uint8_t * boot = read_ihex_file(hex_file_path, &boot_size, &boot_base);
 		if (!boot) {
 			avr_terminate(avr);
+			free(mod);
 			LOGE("Unable to load \"%s\"\n", hex_file_path);
-			return -1;
+			return NULL;
 		}
 		memcpy(avr->flash + boot_base, boot, boot_size);
 		free(boot);
@@ -268,19 +417,35 @@ int arduboy_avr_setup(const char *hex_file_path, bool is_tuned)
 	/* more simulation parameters */
 	avr->log = LOG_DEBUG; // LOG_NONE
 	avr->frequency = AVR_FREQUENCY;
-	avr->sleep = dummy_sleep;
+	avr->sleep = idle_sleep;
 	avr->run_cycle_limit = avr_usec_to_cycles(avr, REFRESH_PERIOD_US);
 
 	/* setup and connect display controller */
-	ssd1306_t *ssd1306 = &mod_s.ssd1306;
+	ssd1306_t *ssd1306 = &mod->ssd1306;
 	ssd1306_init(avr, ssd1306, OLED_WIDTH_PX, OLED_HEIGHT_PX);
 	ssd1306_connect(ssd1306, (ssd1306_wiring_t *) &ssd1306_wiring);
-	avr_irq_register_notify(ssd1306->irq + IRQ_SSD1306_SPI_BYTE_IN, hook_ssd1306_write_data, ssd1306);
-	avr_irq_register_notify(ssd1306->irq + IRQ_SSD1306_TWI_OUT, hook_ssd1306_write_data, ssd1306);
-	memset(mod_s.lumamap, 0, sizeof(mod_s.lumamap));
+	avr_irq_register_notify(ssd1306->irq + IRQ_SSD1306_SPI_BYTE_IN, hook_ssd1306_write_data, mod);
+	avr_irq_register_notify(ssd1306->irq + IRQ_SSD1306_TWI_OUT, hook_ssd1306_write_data, mod);
+	mod->vram_hash = FNV_OFFSET_BASIS;
+	mod->loop.ram_size = avr->ramend + 1 - 0x100;
+	mod->loop.ram = malloc(mod->loop.ram_size);
+	mod->insn_cache_size = (avr->flashend + 1) >> 1;
+	mod->insn_cache = calloc(mod->insn_cache_size, sizeof(struct insn_rec));
+	mod->blocks = calloc(mod->insn_cache_size, sizeof(struct block *));
+	mod->block_hits = calloc(mod->insn_cache_size, sizeof(uint8_t));
+	if (!mod->loop.ram || !mod->insn_cache || !mod->blocks || !mod->block_hits) {
+		avr_terminate(avr);
+		free(mod->loop.ram);
+		free(mod->insn_cache);
+		free(mod->blocks);
+		free(mod->block_hits);
+		free(mod);
+		LOGE("Failed to allocate memory\n");
+		return NULL;
+	}
 
 	/* Setup display render timers */
-	avr_cycle_timer_register_usec(avr, REFRESH_PERIOD_US, refresh, NULL);
+	avr_cycle_timer_register_usec(avr, REFRESH_PERIOD_US, refresh, mod);
 
 	/* Special tuning */
 	mcu_t *mcu = (mcu_t *) avr;
@@ -303,43 +468,53 @@ int arduboy_avr_setup(const char *hex_file_path, bool is_tuned)
 	avr_regbit_set(avr, get_rx_regbit(mcu));
 	avr_regbit_set(avr, get_tx_regbit(mcu));
 
-	mod_s.avr = avr;
+	/* Identify the program for save states */
+	uint32_t hash = FNV_OFFSET_BASIS;
+	for (uint32_t i = 0; i <= avr->flashend; i++) {
+		hash = fnv1a(hash, avr->flash[i]);
+	}
+	mod->rom_hash = hash;
+
+	mod->avr = avr;
 	LOGI("Setup AVR\n");
-	return 0;
+	return mod;
 }
 
-bool arduboy_avr_get_eeprom(char *p_array)
+bool arduboy_avr_get_eeprom(struct arduboy_avr_mod_state *mod, char *p_array)
 {
-	if (!mod_s.avr) {
+	if (!mod) {
 		return false;
 	}
-	mcu_t *mcu = (mcu_t *) mod_s.avr;
+	mcu_t *mcu = (mcu_t *) mod->avr;
 	memcpy(p_array, mcu->eeprom.eeprom, mcu->eeprom.size);
 	return true;
 }
 
-bool arduboy_avr_set_eeprom(const char *p_array)
+bool arduboy_avr_set_eeprom(struct arduboy_avr_mod_state *mod, const char *p_array)
 {
-	if (!mod_s.avr) {
+	if (!mod) {
 		return false;
 	}
-	mcu_t *mcu = (mcu_t *) mod_s.avr;
+	mcu_t *mcu = (mcu_t *) mod->avr;
 	memcpy(mcu->eeprom.eeprom, p_array, mcu->eeprom.size);
 	return true;
 }
 
-bool arduboy_avr_set_refresh_timing(bool is_postpone)
+bool arduboy_avr_set_refresh_timing(struct arduboy_avr_mod_state *mod, bool is_postpone)
 {
-	mod_s.is_refresh_postpone = is_postpone;
+	if (!mod) {
+		return false;
+	}
+	mod->is_refresh_postpone = is_postpone;
 	return true;
 }
 
-bool arduboy_avr_button_event(enum button_e btn_e, bool pressed)
+bool arduboy_avr_button_event(struct arduboy_avr_mod_state *mod, enum button_e btn_e, bool pressed)
 {
-        avr_t *avr = mod_s.avr;
-	if (!avr || btn_e >= BTN_COUNT) {
+	if (!mod || btn_e >= BTN_COUNT) {
 		return false;
 	}
+	avr_t *avr = mod->avr;
 	mcu_t *mcu = (mcu_t *) avr;
 	const struct button_info *btn = &buttons[btn_e];
 	avr_regbit_t regbit = get_port_regbit(mcu, btn->port_name, btn->port_idx);
@@ -347,29 +522,601 @@ bool arduboy_avr_button_event(enum button_e btn_e, bool pressed)
 	return true;
 }
 
-bool arduboy_avr_loop(int *pixels)
+/*------------------------------------------------------------------------------------------------*/
+
+/*
+ * Busy-wait loop detection.
+ *
+ * When the head of a loop (the target of a backward jump) is passed twice with exactly the same
+ * registers, SREG, SP and SRAM, and nothing in between touched I/O registers or returned from an
+ * interrupt, every following iteration is identical until the next cycle timer fires (timer0
+ * overflow updates millis, refresh() ends the frame, and so on). So the cycle count can jump
+ * to just before that timer by whole iterations.
+ */
+
+static inline uint16_t get_reg_pair(avr_t *avr, int reg)
 {
-	avr_t *avr = mod_s.avr;
-	if (!avr) {
+	return avr->data[reg] | (avr->data[reg + 1] << 8);
+}
+
+static inline bool is_pure_addr(uint16_t addr)
+{
+	/* Register file and SRAM are compared, SREG and SP are saved */
+	return addr < 0x20 || addr >= 0x100 || addr == R_SREG || addr == R_SPL || addr == R_SPH;
+}
+
+static bool is_pure_insn(avr_t *avr, avr_flashaddr_t pc)
+{
+	uint16_t op = avr->flash[pc] | (avr->flash[pc + 1] << 8);
+	if ((op & 0xF000) == 0xB000) {			// IN, OUT
+		return is_pure_addr(0x20 + (((op >> 5) & 0x30) | (op & 0x0F)));
+	}
+	if ((op & 0xFC00) == 0x9800) {			// CBI, SBIC, SBI, SBIS
 		return false;
 	}
-	mod_s.yield = false;
-	while (!mod_s.yield) {
-		int state = avr_run(avr);
-		if (state == cpu_Done || state == cpu_Crashed) {
+	if ((op & 0xD000) == 0x8000) {			// LD, LDD, ST, STD with Y or Z
+		int q = ((op >> 8) & 0x20) | ((op >> 7) & 0x18) | (op & 0x07);
+		return is_pure_addr(get_reg_pair(avr, (op & 0x08) ? R_YL : R_ZL) + q);
+	}
+	if ((op & 0xFC00) == 0x9000) {
+		switch (op & 0x000F) {
+		case 0x0:					// LDS, STS
+			return is_pure_addr(avr->flash[pc + 2] | (avr->flash[pc + 3] << 8));
+		case 0x1: case 0x2:			// LD, ST with Z+ or -Z
+			return is_pure_addr(get_reg_pair(avr, R_ZL) - ((op & 0x000F) == 0x2));
+		case 0x4: case 0x5: case 0x6: case 0x7:	// LPM, ELPM, XCH, LAS, LAC, LAT
+			return !(op & 0x0200) || is_pure_addr(get_reg_pair(avr, R_ZL));
+		case 0x9: case 0xA:			// LD, ST with Y+ or -Y
+			return is_pure_addr(get_reg_pair(avr, R_YL) - ((op & 0x000F) == 0xA));
+		case 0xC: case 0xD: case 0xE:		// LD, ST with X, X+ or -X
+			return is_pure_addr(get_reg_pair(avr, R_XL) - ((op & 0x000F) == 0xE));
+		case 0xF:					// PUSH, POP
+			return true;
+		default:
 			return false;
 		}
 	}
-	render_screen(pixels, &mod_s.ssd1306);
+	switch (op) {
+	case 0x9518:	// RETI
+	case 0x9588:	// SLEEP
+	case 0x9598:	// BREAK
+	case 0x95A8:	// WDR
+	case 0x95E8:	// SPM
+	case 0x95F8:	// SPM Z+
+		return false;
+	}
 	return true;
 }
 
-bool arduboy_avr_get_led_state(int *leds)
+static void reject_busy_loop(struct busy_loop_state *loop)
 {
-	avr_t *avr = mod_s.avr;
-	if (!avr) {
+	loop->phase = BUSY_LOOP_IDLE;
+	loop->backoff = loop->backoff * 2 + 1;
+	if (loop->backoff > BUSY_LOOP_MAX_BACKOFF) {
+		loop->backoff = BUSY_LOOP_MAX_BACKOFF;
+	}
+	loop->backoff_count = loop->backoff;
+}
+
+/* Called after each batch of instructions run while backing off */
+static void count_busy_loop_backoff(struct busy_loop_state *loop, avr_cycle_count_t cycle)
+{
+	if (loop->backoff_count > 0 && --loop->backoff_count == 0) {
+		loop->cycle = cycle; // look for a candidate from here
+	}
+}
+
+/* Called before each instruction while a candidate is being looked for or verified */
+static void inspect_busy_loop(struct arduboy_avr_mod_state *mod, avr_flashaddr_t pc)
+{
+	avr_t *avr = mod->avr;
+	struct busy_loop_state *loop = &mod->loop;
+	if (avr->cycle - loop->cycle > BUSY_LOOP_MAX_CYCLES ||
+			(loop->phase != BUSY_LOOP_IDLE && !is_pure_insn(avr, pc))) {
+		reject_busy_loop(loop);
+	}
+}
+
+/* Called after each backward jump */
+static void check_busy_loop(struct arduboy_avr_mod_state *mod)
+{
+	avr_t *avr = mod->avr;
+	struct busy_loop_state *loop = &mod->loop;
+	if (loop->phase != BUSY_LOOP_IDLE) {
+		if (avr->pc != loop->pc) {
+			return; // inner loop or subroutine, keep verifying
+		}
+		if (memcmp(loop->regs, avr->data, sizeof(loop->regs)) ||
+				memcmp(loop->sreg, avr->sreg, sizeof(loop->sreg)) ||
+				loop->sp[0] != avr->data[R_SPL] || loop->sp[1] != avr->data[R_SPH]) {
+			reject_busy_loop(loop);
+			return;
+		}
+		if (loop->phase == BUSY_LOOP_REGS) {
+			memcpy(loop->ram, avr->data + 0x100, loop->ram_size);
+			loop->phase = BUSY_LOOP_RAM;
+			loop->cycle = avr->cycle;
+			return;
+		}
+		if (memcmp(loop->ram, avr->data + 0x100, loop->ram_size) ||
+				avr_has_pending_interrupts(avr)) {
+			reject_busy_loop(loop);
+			return;
+		}
+
+		/* Fast-forward by whole iterations up to the next cycle timer */
+		avr_cycle_count_t period = avr->cycle - loop->cycle;
+		avr_cycle_timer_slot_p timer = avr->cycle_timers.timer;
+		if (timer && period > 0 && timer->when > avr->cycle) {
+			avr_cycle_count_t skip = (timer->when - avr->cycle) / period * period;
+			avr->cycle += skip;
+			mod->busy_cycles += skip;
+		}
+		loop->cycle = avr->cycle;
+		loop->backoff = 0;
+		return;
+	}
+	if (loop->backoff_count > 0) {
+		loop->backoff_count--;
+		return;
+	}
+	memcpy(loop->regs, avr->data, sizeof(loop->regs));
+	memcpy(loop->sreg, avr->sreg, sizeof(loop->sreg));
+	loop->sp[0] = avr->data[R_SPL];
+	loop->sp[1] = avr->data[R_SPH];
+	loop->pc = avr->pc;
+	loop->cycle = avr->cycle;
+	loop->phase = BUSY_LOOP_REGS;
+}
+
+/*------------------------------------------------------------------------------------------------*/
+
+/*
+ * Predecoded instructions.
+ *
+ * The most frequent instructions which only touch the register file and SREG (arithmetic,
+ * logic, moves, relative jumps and branches) are decoded once into insn_cache and executed here
+ * without avr_run_one(). Everything else goes through simavr one instruction at a time. Each
+ * entry keeps the opcode it was decoded from, so a flash word rewritten by SPM or by loading a
+ * state is decoded again when it's executed next.
+ */
+
+static void decode_insn(struct insn_rec *insn, uint16_t op)
+{
+	insn->op = op;
+	insn->kind = INSN_SLOW;
+	insn->d = (op >> 4) & 0x1F;
+	insn->r = ((op >> 5) & 0x10) | (op & 0x0F);
+	insn->k = 0;
+	switch (op & 0xF000) {
+	case 0x0000: case 0x1000: case 0x2000:
+		switch (op & 0xFC00) {
+		case 0x0000:
+			if (op == 0x0000) {
+				insn->kind = INSN_NOP;
+			} else if ((op & 0xFF00) == 0x0100) {	// MOVW
+				insn->kind = INSN_MOVW;
+				insn->d = ((op >> 4) & 0x0F) << 1;
+				insn->r = (op & 0x0F) << 1;
+			}
+			break;
+		case 0x0400: insn->kind = INSN_CPC; break;
+		case 0x0800: insn->kind = INSN_SBC; break;
+		case 0x0C00: insn->kind = INSN_ADD; break;
+		case 0x1400: insn->kind = INSN_CP; break;
+		case 0x1800: insn->kind = INSN_SUB; break;
+		case 0x1C00: insn->kind = INSN_ADC; break;
+		case 0x2000: insn->kind = INSN_AND; break;
+		case 0x2400: insn->kind = INSN_EOR; break;
+		case 0x2800: insn->kind = INSN_OR; break;
+		case 0x2C00: insn->kind = INSN_MOV; break;
+		}
+		break;
+	case 0x3000: case 0x4000: case 0x5000: case 0x6000: case 0x7000: case 0xE000: {
+		static const uint8_t imm_kinds[16] = {
+			[0x3] = INSN_CPI, [0x4] = INSN_SBCI, [0x5] = INSN_SUBI,
+			[0x6] = INSN_ORI, [0x7] = INSN_ANDI, [0xE] = INSN_LDI,
+		};
+		insn->kind = imm_kinds[op >> 12];
+		insn->d = 16 + ((op >> 4) & 0x0F);	// r16-r31 only
+		insn->k = ((op >> 4) & 0xF0) | (op & 0x0F);
+		break;
+	}
+	case 0x9000:
+		if ((op & 0xFE0F) == 0x9403) {
+			insn->kind = INSN_INC;
+		} else if ((op & 0xFE0F) == 0x940A) {
+			insn->kind = INSN_DEC;
+		} else if ((op & 0xFE00) == 0x9600) {	// ADIW, SBIW
+			insn->kind = (op & 0x0100) ? INSN_SBIW : INSN_ADIW;
+			insn->d = R_XL - 2 + (((op >> 4) & 0x03) << 1);
+			insn->k = ((op >> 2) & 0x30) | (op & 0x0F);
+		}
+		break;
+	case 0xC000:
+		insn->kind = INSN_RJMP;
+		insn->k = ((int16_t) (op << 4)) >> 4;
+		break;
+	case 0xF000:
+		if ((op & 0xF800) == 0xF000) {	// BRBS, BRBC
+			insn->kind = (op & 0x0400) ? INSN_BRBC : INSN_BRBS;
+			insn->r = op & 0x07;
+			insn->k = ((int16_t) (op << 6)) >> 9;
+		}
+		break;
+	}
+}
+
+static inline void set_zns_flags(uint8_t *sreg, uint8_t res)
+{
+	sreg[S_Z] = res == 0;
+	sreg[S_N] = res >> 7;
+	sreg[S_S] = sreg[S_N] ^ sreg[S_V];
+}
+
+static inline void set_add_flags(uint8_t *sreg, uint8_t rd, uint8_t rr, uint8_t res)
+{
+	uint8_t carry = (rd & rr) | (rr & ~res) | (~res & rd);
+	sreg[S_H] = (carry >> 3) & 1;
+	sreg[S_C] = (carry >> 7) & 1;
+	sreg[S_V] = (((rd & rr & ~res) | (~rd & ~rr & res)) >> 7) & 1;
+	set_zns_flags(sreg, res);
+}
+
+static inline void set_sub_flags(uint8_t *sreg, uint8_t rd, uint8_t rr, uint8_t res, bool is_chain)
+{
+	uint8_t borrow = (~rd & rr) | (rr & res) | (res & ~rd);
+	uint8_t z = is_chain ? sreg[S_Z] : 1;
+	sreg[S_H] = (borrow >> 3) & 1;
+	sreg[S_C] = (borrow >> 7) & 1;
+	sreg[S_V] = (((rd & ~rr & ~res) | (~rd & rr & res)) >> 7) & 1;
+	set_zns_flags(sreg, res);
+	sreg[S_Z] &= z;
+}
+
+static inline void set_logic_flags(uint8_t *sreg, uint8_t res)
+{
+	sreg[S_V] = 0;
+	set_zns_flags(sreg, res);
+}
+
+/*
+ * Executes a predecoded instruction at *p_pc and updates *p_pc to the next one.
+ * Returns the number of cycles taken, or 0 without doing anything if the instruction must be run
+ * by simavr.
+ */
+static inline int exec_insn(avr_t *avr, const struct insn_rec *insn, avr_flashaddr_t *p_pc)
+{
+	uint8_t *data = avr->data, *sreg = avr->sreg;
+	uint8_t d = insn->d, rd = data[d], rr = data[insn->r], res;
+	avr_flashaddr_t new_pc = *p_pc + 2;
+	int cycle = 1;
+	switch (insn->kind) {
+	case INSN_NOP:
+		break;
+	case INSN_MOV:
+		data[d] = rr;
+		break;
+	case INSN_MOVW:
+		data[d] = rr;
+		data[d + 1] = data[insn->r + 1];
+		break;
+	case INSN_LDI:
+		data[d] = insn->k;
+		break;
+	case INSN_ADD:
+	case INSN_ADC:
+		res = rd + rr + ((insn->kind == INSN_ADC) ? sreg[S_C] : 0);
+		data[d] = res;
+		set_add_flags(sreg, rd, rr, res);
+		break;
+	case INSN_SUBI:
+	case INSN_SBCI:
+	case INSN_CPI:
+		rr = insn->k;
+		// fall through
+	case INSN_SUB:
+	case INSN_SBC:
+	case INSN_CP:
+	case INSN_CPC: {
+		bool is_chain = (insn->kind == INSN_SBC || insn->kind == INSN_SBCI ||
+				insn->kind == INSN_CPC);
+		res = rd - rr - (is_chain ? sreg[S_C] : 0);
+		if (insn->kind != INSN_CP && insn->kind != INSN_CPC && insn->kind != INSN_CPI) {
+			data[d] = res;
+		}
+		set_sub_flags(sreg, rd, rr, res, is_chain);
+		break;
+	}
+	case INSN_ANDI:
+		rr = insn->k;
+		// fall through
+	case INSN_AND:
+		data[d] = res = rd & rr;
+		set_logic_flags(sreg, res);
+		break;
+	case INSN_ORI:
+		rr = insn->k;
+		// fall through
+	case INSN_OR:
+		data[d] = res = rd | rr;
+		set_logic_flags(sreg, res);
+		break;
+	case INSN_EOR:
+		data[d] = res = rd ^ rr;
+		set_logic_flags(sreg, res);
+		break;
+	case INSN_INC:
+		data[d] = res = rd + 1;
+		sreg[S_V] = res == 0x80;
+		set_zns_flags(sreg, res);
+		break;
+	case INSN_DEC:
+		data[d] = res = rd - 1;
+		sreg[S_V] = res == 0x7F;
+		set_zns_flags(sreg, res);
+		break;
+	case INSN_ADIW:
+	case INSN_SBIW: {
+		uint16_t word = get_reg_pair(avr, d);
+		uint16_t word_res = (insn->kind == INSN_ADIW) ? word + insn->k : word - insn->k;
+		data[d] = word_res;
+		data[d + 1] = word_res >> 8;
+		if (insn->kind == INSN_ADIW) {
+			sreg[S_V] = (~word & word_res) >> 15;
+			sreg[S_C] = (~word_res & word) >> 15;
+		} else {
+			sreg[S_V] = (word & ~word_res) >> 15;
+			sreg[S_C] = (word_res & ~word) >> 15;
+		}
+		sreg[S_Z] = word_res == 0;
+		sreg[S_N] = word_res >> 15;
+		sreg[S_S] = sreg[S_N] ^ sreg[S_V];
+		cycle = 2;
+		break;
+	}
+	case INSN_RJMP:
+		new_pc += insn->k << 1;
+		cycle = 2;
+		break;
+	case INSN_BRBS:
+	case INSN_BRBC:
+		if (sreg[insn->r] == (insn->kind == INSN_BRBS)) {
+			new_pc += insn->k << 1;
+			cycle = 2;
+		}
+		break;
+	default:
+		return 0;
+	}
+	*p_pc = new_pc;
+	return cycle;
+}
+
+/*
+ * Executes one instruction at avr->pc from insn_cache, followed by what avr_callback_run_raw()
+ * does after each instruction: cycle timers and interrupts.
+ *
+ * Returns false without doing anything if the instruction must be run by simavr.
+ */
+static bool run_predecoded(struct arduboy_avr_mod_state *mod)
+{
+	avr_t *avr = mod->avr;
+	avr_flashaddr_t pc = avr->pc;
+	if (avr->state != cpu_Running || (pc >> 1) >= mod->insn_cache_size) {
+		return false;
+	}
+	struct insn_rec *insn = &mod->insn_cache[pc >> 1];
+	uint16_t op = avr->flash[pc] | (avr->flash[pc + 1] << 8);
+	if (insn->op != op || insn->kind == INSN_UNDECODED) {
+		decode_insn(insn, op);
+	}
+	int cycle = exec_insn(avr, insn, &pc);
+	if (!cycle) {
+		return false;
+	}
+	avr->cycle += cycle;
+
+	avr_cycle_timer_slot_p timer = avr->cycle_timers.timer;
+	if (timer && timer->when <= avr->cycle) {
+		avr_cycle_timer_process(avr);
+	}
+	avr->pc = pc;
+	if (avr->interrupt_state) {
+		avr_service_interrupts(avr);
+	}
+	return true;
+}
+
+/*------------------------------------------------------------------------------------------------*/
+
+/*
+ * Basic block translation.
+ *
+ * When the execution reaches the same address BLOCK_HOT_COUNT times, the following run of
+ * predecoded instructions up to the first jump or branch is copied into a block, which is kept
+ * in a cache indexed by its start address. A block runs its records back to back without
+ * fetching opcodes, and only stops early at the next cycle timer. Entering it requires no pending
+ * interrupt, and nothing inside a block can raise one or register a timer, so the result is the
+ * same as running the instructions one by one. Blocks are discarded when SPM may have rewritten
+ * the flash.
+ */
+
+static struct block *translate_block(struct arduboy_avr_mod_state *mod, avr_flashaddr_t pc)
+{
+	avr_t *avr = mod->avr;
+	struct insn_rec insns[BLOCK_MAX_INSNS];
+	int count = 0;
+	while (count < BLOCK_MAX_INSNS && (pc >> 1) < mod->insn_cache_size) {
+		struct insn_rec *insn = &mod->insn_cache[pc >> 1];
+		uint16_t op = avr->flash[pc] | (avr->flash[pc + 1] << 8);
+		if (insn->op != op || insn->kind == INSN_UNDECODED) {
+			decode_insn(insn, op);
+		}
+		if (insn->kind == INSN_SLOW) {
+			break;
+		}
+		insns[count++] = *insn;
+		pc += 2;
+		if (insn->kind == INSN_RJMP || insn->kind == INSN_BRBS || insn->kind == INSN_BRBC) {
+			break;
+		}
+	}
+	if (count < BLOCK_MIN_INSNS) {
+		return NULL;
+	}
+	struct block *block = malloc(sizeof(struct block) + count * sizeof(struct insn_rec));
+	if (block) {
+		block->flash_gen = mod->flash_gen;
+		block->count = count;
+		memcpy(block->insns, insns, count * sizeof(struct insn_rec));
+	}
+	return block;
+}
+
+/*
+ * Runs the block starting at avr->pc, translating it if it has become hot.
+ * *p_last_pc is set to the address of the last instruction executed.
+ *
+ * Returns false without doing anything if there is no block to run.
+ */
+static bool run_block(struct arduboy_avr_mod_state *mod, avr_flashaddr_t *p_last_pc)
+{
+	avr_t *avr = mod->avr;
+	avr_flashaddr_t pc = avr->pc;
+	uint32_t idx = pc >> 1;
+	if (avr->state != cpu_Running || avr->interrupt_state || idx >= mod->insn_cache_size) {
+		return false;
+	}
+	struct block *block = mod->blocks[idx];
+	if (block && block->flash_gen != mod->flash_gen) {
+		free(block);
+		block = mod->blocks[idx] = NULL;
+	}
+	if (!block) {
+		if (++mod->block_hits[idx] < BLOCK_HOT_COUNT) {
+			return false;
+		}
+		mod->block_hits[idx] = 0;
+		block = mod->blocks[idx] = translate_block(mod, pc);
+		if (!block) {
+			return false;
+		}
+	}
+
+	avr_cycle_timer_slot_p timer = avr->cycle_timers.timer;
+	avr_cycle_count_t limit = timer ? timer->when : ~(avr_cycle_count_t) 0;
+	const struct insn_rec *insn = block->insns, *end = insn + block->count;
+	avr_flashaddr_t last_pc;
+	do {
+		last_pc = pc;
+		avr->cycle += exec_insn(avr, insn++, &pc);
+	} while (insn < end && avr->cycle < limit);
+
+	if (avr->cycle >= limit) {
+		avr_cycle_timer_process(avr);
+	}
+	avr->pc = pc;
+	if (avr->interrupt_state) {
+		avr_service_interrupts(avr);
+	}
+	*p_last_pc = last_pc;
+	return true;
+}
+
+static void free_blocks(struct arduboy_avr_mod_state *mod)
+{
+	for (uint32_t i = 0; i < mod->insn_cache_size; i++) {
+		free(mod->blocks[i]);
+		mod->blocks[i] = NULL;
+	}
+}
+
+/* Runs exactly one instruction by simavr */
+static int run_single(struct arduboy_avr_mod_state *mod)
+{
+	avr_t *avr = mod->avr;
+	avr_flashaddr_t pc = avr->pc;
+	bool is_spm = pc < avr->flashend &&
+			((avr->flash[pc] | (avr->flash[pc + 1] << 8)) & 0xFFEF) == 0x95E8;	// SPM, SPM Z+
+	avr->run_cycle_count = 0;
+	int state = avr_run(avr);
+	if (is_spm) {
+		mod->flash_gen++;
+	}
+	return state;
+}
+
+/*------------------------------------------------------------------------------------------------*/
+
+static int run_frame(struct arduboy_avr_mod_state *mod)
+{
+	avr_t *avr = mod->avr;
+	mod->yield = false;
+	while (!mod->yield) {
+		int state;
+		if (avr->state == cpu_Sleeping) {
+			avr_cycle_count_t cycle = avr->cycle;
+			state = avr_run(avr);
+			mod->idle_cycles += avr->cycle - cycle;
+		} else if (mod->is_predecode) {
+			avr_flashaddr_t pc = avr->pc;
+			bool is_inspecting = mod->is_busy_skip && mod->loop.phase != BUSY_LOOP_IDLE;
+			if (is_inspecting) {
+				inspect_busy_loop(mod, pc);
+			}
+			if ((mod->is_translate && !is_inspecting && run_block(mod, &pc)) ||
+					run_predecoded(mod)) {
+				state = avr->state;
+			} else {
+				state = run_single(mod);
+			}
+			if (mod->is_busy_skip && avr->pc < pc && avr->state == cpu_Running) {
+				check_busy_loop(mod);
+			}
+		} else if (mod->is_busy_skip &&
+				(mod->loop.phase != BUSY_LOOP_IDLE || mod->loop.backoff_count == 0)) {
+			/* One by one only while a candidate is looked for or verified */
+			avr_flashaddr_t pc = avr->pc;
+			inspect_busy_loop(mod, pc);
+			state = run_single(mod);
+			if (avr->pc < pc && avr->state == cpu_Running) {
+				check_busy_loop(mod);
+			}
+		} else {
+			state = avr_run(avr);
+			if (mod->is_busy_skip) {
+				count_busy_loop_backoff(&mod->loop, avr->cycle);
+			}
+		}
+		if (state == cpu_Done) {
+			return STEP_DONE;
+		}
+		if (state == cpu_Crashed) {
+			return STEP_CRASHED;
+		}
+	}
+	return STEP_RUNNING;
+}
+
+bool arduboy_avr_loop(struct arduboy_avr_mod_state *mod, int *pixels)
+{
+	if (!mod) {
 		return false;
 	}
+	if (run_frame(mod) != STEP_RUNNING) {
+		return false;
+	}
+	render_screen(mod, pixels, OLED_WIDTH_PX);
+	return true;
+}
+
+bool arduboy_avr_get_led_state(struct arduboy_avr_mod_state *mod, int *leds)
+{
+	if (!mod) {
+		return false;
+	}
+	avr_t *avr = mod->avr;
 	mcu_t *mcu = (mcu_t *) avr;
 	leds[LED_RED]   = get_led_analog(avr, &mcu->timer1.comp[AVR_TIMER_COMPB]);
 	leds[LED_GREEN] = get_led_analog(avr, &mcu->timer0.comp[AVR_TIMER_COMPA]);
@@ -379,11 +1126,575 @@ bool arduboy_avr_get_led_state(int *leds)
 	return true;
 }
 
-void arduboy_avr_teardown(void)
+void arduboy_avr_set_ctrl(struct arduboy_avr_mod_state *mod, struct arduboy_avr_ctrl *ctrl)
+{
+	if (mod) {
+		mod->ctrl = ctrl;
+		mod->rendered_ctrl = NULL;
+		mod->rendered_bits_ctrl = NULL;
+	}
+}
+
+bool arduboy_avr_step(struct arduboy_avr_mod_state *mod, int frames)
+{
+	struct arduboy_avr_ctrl *ctrl = mod ? mod->ctrl : NULL;
+	if (!ctrl) {
+		return false;
+	}
+	avr_t *avr = mod->avr;
+
+	/* Apply options */
+	bool is_busy_skip = (ctrl->flags & STEP_FLAG_SKIP_BUSY_LOOP) != 0;
+	if (is_busy_skip != mod->is_busy_skip) {
+		mod->is_busy_skip = is_busy_skip;
+		mod->loop.phase = BUSY_LOOP_IDLE;
+	}
+	mod->is_translate = (ctrl->flags & STEP_FLAG_TRANSLATE) != 0;
+	mod->is_predecode = mod->is_translate || (ctrl->flags & STEP_FLAG_PREDECODE) != 0;
+
+	/* Apply button state */
+	for (int btn_e = 0; btn_e < BTN_COUNT; btn_e++) {
+		arduboy_avr_button_event(mod, (enum button_e) btn_e, (ctrl->buttons & (1 << btn_e)) != 0);
+	}
+
+	/* Emulate frames */
+	int status = STEP_RUNNING, count = 0;
+	while (count < frames) {
+		status = run_frame(mod);
+		if (status != STEP_RUNNING) {
+			break;
+		}
+		count++;
+	}
+
+	/* Detect change of the screen */
+	uint32_t hash = get_display_hash(mod);
+	bool is_dirty = !mod->is_display_hash_valid || hash != mod->display_hash;
+	mod->display_hash = hash;
+	mod->is_display_hash_valid = true;
+
+	/* Write back results */
+	if (ctrl->flags & STEP_FLAG_RENDER_PIXELS) {
+		if (is_dirty || mod->rendered_ctrl != ctrl) {
+			render_screen(mod, ctrl->pixels, OLED_WIDTH_PX);
+			mod->rendered_ctrl = ctrl;
+		}
+	} else {
+		mod->rendered_ctrl = NULL;
+	}
+	if (ctrl->flags & STEP_FLAG_RENDER_BITS) {
+		if (is_dirty || mod->rendered_bits_ctrl != ctrl) {
+			render_bits(mod, ctrl->bits);
+			mod->rendered_bits_ctrl = ctrl;
+		}
+	} else {
+		mod->rendered_bits_ctrl = NULL;
+	}
+	ctrl->dirty = is_dirty;
+	ctrl->hash = hash;
+	arduboy_avr_get_led_state(mod, ctrl->leds);
+	ctrl->status = status;
+	ctrl->frames = count;
+	ctrl->cycles = avr->cycle;
+	ctrl->idle_cycles = mod->idle_cycles;
+	ctrl->busy_cycles = mod->busy_cycles;
+	return (status == STEP_RUNNING);
+}
+
+bool arduboy_avr_render(struct arduboy_avr_mod_state *mod, int *pixels, int stride)
+{
+	if (!mod || stride < OLED_WIDTH_PX) {
+		return false;
+	}
+	render_screen(mod, pixels, stride);
+	return true;
+}
+
+/*------------------------------------------------------------------------------------------------*/
+
+/*
+ * Save states.
+ *
+ * simavr has no serializer, so the state which changes while running is written field by field:
+ * the core (cycle, PC, SREG, registers, I/O and SRAM), pending and running interrupts, EEPROM,
+ * the display controller, timers and the list of cycle timers. Configuration made by setup (IRQs,
+ * I/O callbacks, vector tables) isn't saved, as it's the same in every instance of the same
+ * program. Pointers are saved as indices or offsets: interrupt vectors as indices into the vector
+ * table, cycle timer callbacks as offsets in the code of this library, and their parameters as
+ * offsets in mcu_t or the module state. Offsets are only valid for the same build of this
+ * library, so the header carries a hash of its code. The lumamap is rebuilt from the VRAM on load.
+ * All integers are little-endian, and the size of a state is fixed for a program.
+ */
+
+#define STATE_MAGIC "ARBYSTAT"
+#define STATE_VERSION (3)	// bump whenever the layout below changes
+
+#define COUNT_OF(array) ((int) (sizeof(array) / sizeof((array)[0])))
+
+#if UINTPTR_MAX > 0xFFFFFFFFU
+typedef Elf64_Ehdr elf_ehdr_t;
+typedef Elf64_Phdr elf_phdr_t;
+#else
+typedef Elf32_Ehdr elf_ehdr_t;
+typedef Elf32_Phdr elf_phdr_t;
+#endif
+
+enum state_param_e {
+	PARAM_NULL = 0,
+	PARAM_MCU,		// offset in mcu_t
+	PARAM_MOD,		// offset in struct arduboy_avr_mod_state
+};
+
+struct state_io {
+	uint8_t *buf;	// NULL to count the size only
+	int size, pos;
+	bool is_failed;
+};
+
+struct code_segment {
+	uintptr_t base, size;
+	uint32_t hash;
+};
+
+/* Executable segment of this library, which cycle timer callbacks belong to */
+static const struct code_segment *get_code_segment(void)
+{
+	static struct code_segment code = { 0, 0, 0 };
+	if (!code.base) {
+		Dl_info info;
+		if (dladdr((void *) refresh, &info) && info.dli_fbase) {
+			const elf_ehdr_t *ehdr = (const elf_ehdr_t *) info.dli_fbase;
+			const elf_phdr_t *phdr = (const elf_phdr_t *) ((uintptr_t) ehdr + ehdr->e_phoff);
+			for (int i = 0; i < ehdr->e_phnum; i++) {
+				if (phdr[i].p_type == PT_LOAD && (phdr[i].p_flags & PF_X)) {
+					const uint8_t *p = (const uint8_t *) info.dli_fbase + phdr[i].p_vaddr;
+					uint32_t hash = FNV_OFFSET_BASIS;
+					for (uintptr_t j = 0; j < phdr[i].p_filesz; j++) {
+						hash = fnv1a(hash, p[j]);
+					}
+					code.size = phdr[i].p_memsz;
+					code.hash = hash;
+					code.base = (uintptr_t) p;
+					break;
+				}
+			}
+		}
+	}
+	return &code;
+}
+
+static void put_uint(struct state_io *io, uint64_t value, int bytes)
+{
+	for (int i = 0; i < bytes; i++) {
+		if (io->buf && io->pos < io->size) {
+			io->buf[io->pos] = (uint8_t) (value >> (i * 8));
+		}
+		io->pos++;
+	}
+}
+
+static void put_bytes(struct state_io *io, const void *src, int size)
+{
+	if (io->buf && io->pos + size <= io->size) {
+		memcpy(io->buf + io->pos, src, size);
+	}
+	io->pos += size;
+}
+
+static uint64_t get_uint(struct state_io *io, int bytes)
+{
+	uint64_t value = 0;
+	if (io->pos + bytes > io->size) {
+		io->is_failed = true;
+		return 0;
+	}
+	for (int i = 0; i < bytes; i++) {
+		value |= (uint64_t) io->buf[io->pos++] << (i * 8);
+	}
+	return value;
+}
+
+static void get_bytes(struct state_io *io, void *dst, int size)
+{
+	if (io->pos + size > io->size) {
+		io->is_failed = true;
+		return;
+	}
+	memcpy(dst, io->buf + io->pos, size);
+	io->pos += size;
+}
+
+/* Interrupt vectors are saved as indices in the vector table */
+static void put_vector(struct state_io *io, avr_t *avr, avr_int_vector_p vector)
+{
+	for (int i = 0; i < avr->interrupts.vector_count; i++) {
+		if (avr->interrupts.vector[i] == vector) {
+			put_uint(io, i, 1);
+			return;
+		}
+	}
+	io->is_failed = true;
+	put_uint(io, 0xFF, 1);
+}
+
+static avr_int_vector_p get_vector(struct state_io *io, avr_t *avr)
+{
+	uint8_t index = get_uint(io, 1);
+	if (index >= avr->interrupts.vector_count) {
+		io->is_failed = true;
+		return NULL;
+	}
+	return avr->interrupts.vector[index];
+}
+
+static void put_timer(struct state_io *io, avr_timer_t *timer)
+{
+	put_uint(io, timer->mode.kind, 1);
+	put_uint(io, timer->mode.size, 1);
+	put_uint(io, timer->mode.top, 1);
+	put_uint(io, timer->mode.bottom, 1);
+	put_uint(io, timer->tov_cycles, 8);
+	put_uint(io, timer->tov_base, 8);
+	put_uint(io, timer->tov_top, 2);
+	for (int i = 0; i < AVR_TIMER_COMP_COUNT; i++) {
+		put_uint(io, timer->comp[i].comp_cycles, 8);
+	}
+}
+
+static void get_timer(struct state_io *io, avr_timer_t *timer)
+{
+	timer->mode.kind = get_uint(io, 1);
+	timer->mode.size = get_uint(io, 1);
+	timer->mode.top = get_uint(io, 1);
+	timer->mode.bottom = get_uint(io, 1);
+	timer->tov_cycles = get_uint(io, 8);
+	timer->tov_base = get_uint(io, 8);
+	timer->tov_top = get_uint(io, 2);
+	for (int i = 0; i < AVR_TIMER_COMP_COUNT; i++) {
+		timer->comp[i].comp_cycles = get_uint(io, 8);
+	}
+}
+
+static void put_cycle_timers(struct state_io *io, struct arduboy_avr_mod_state *mod)
+{
+	avr_t *avr = mod->avr;
+	const struct code_segment *code = get_code_segment();
+	int count = 0;
+	for (avr_cycle_timer_slot_p t = avr->cycle_timers.timer; t; t = t->next) {
+		count++;
+	}
+	put_uint(io, count, 1);
+	avr_cycle_timer_slot_p timer = avr->cycle_timers.timer;
+	for (int i = 0; i < COUNT_OF(avr->cycle_timers.timer_slots); i++) {
+		if (!timer) {
+			put_uint(io, 0, 4 + 1 + 4 + 8); // unused slot
+			continue;
+		}
+		uintptr_t callback = (uintptr_t) timer->timer;
+		uintptr_t param = (uintptr_t) timer->param;
+		int param_kind = PARAM_NULL;
+		if (param - (uintptr_t) avr < sizeof(mcu_t)) {
+			param_kind = PARAM_MCU;
+			param -= (uintptr_t) avr;
+		} else if (param - (uintptr_t) mod < sizeof(struct arduboy_avr_mod_state)) {
+			param_kind = PARAM_MOD;
+			param -= (uintptr_t) mod;
+		} else if (param) {
+			io->is_failed = true;
+		}
+		if (!code->base || callback - code->base >= code->size) {
+			io->is_failed = true;
+		}
+		put_uint(io, callback - code->base, 4);
+		put_uint(io, param_kind, 1);
+		put_uint(io, param, 4);
+		put_uint(io, timer->when, 8);
+		timer = timer->next;
+	}
+}
+
+static void get_cycle_timers(struct state_io *io, struct arduboy_avr_mod_state *mod)
+{
+	avr_t *avr = mod->avr;
+	avr_cycle_timer_pool_t *pool = &avr->cycle_timers;
+	const struct code_segment *code = get_code_segment();
+	int count = get_uint(io, 1);
+	if (count > COUNT_OF(pool->timer_slots)) {
+		io->is_failed = true;
+		return;
+	}
+	avr_cycle_timer_slot_p *link = &pool->timer;
+	for (int i = 0; i < COUNT_OF(pool->timer_slots); i++) {
+		avr_cycle_timer_slot_p timer = &pool->timer_slots[i];
+		uintptr_t callback = get_uint(io, 4);
+		int param_kind = get_uint(io, 1);
+		uintptr_t param = get_uint(io, 4);
+		timer->when = get_uint(io, 8);
+		if (i >= count) {
+			timer->timer = NULL;
+			timer->param = NULL;
+			timer->when = 0;
+			continue;
+		}
+		if (callback >= code->size || (param_kind == PARAM_MCU && param >= sizeof(mcu_t)) ||
+				(param_kind == PARAM_MOD && param >= sizeof(struct arduboy_avr_mod_state)) ||
+				param_kind > PARAM_MOD) {
+			io->is_failed = true;
+			continue;
+		}
+		timer->timer = (avr_cycle_timer_t) (code->base + callback);
+		timer->param = (param_kind == PARAM_MCU) ? (void *) ((uintptr_t) avr + param) :
+				(param_kind == PARAM_MOD) ? (void *) ((uintptr_t) mod + param) : NULL;
+		*link = timer;
+		link = &timer->next;
+	}
+	*link = NULL;
+
+	/* The rest of the slots are free */
+	link = &pool->timer_free;
+	for (int i = count; i < COUNT_OF(pool->timer_slots); i++) {
+		*link = &pool->timer_slots[i];
+		link = &pool->timer_slots[i].next;
+	}
+	*link = NULL;
+}
+
+/* Writes the state, or counts its size if io->buf is NULL */
+static void put_state(struct state_io *io, struct arduboy_avr_mod_state *mod)
+{
+	avr_t *avr = mod->avr;
+	mcu_t *mcu = (mcu_t *) avr;
+	ssd1306_t *ssd1306 = &mod->ssd1306;
+
+	/* Header */
+	put_bytes(io, STATE_MAGIC, 8);
+	put_uint(io, STATE_VERSION, 4);
+	put_uint(io, get_code_segment()->hash, 4);
+	put_uint(io, mod->rom_hash, 4);
+	put_uint(io, io->size, 4);
+
+	/* Core */
+	put_uint(io, avr->cycle, 8);
+	put_uint(io, avr->pc, 4);
+	put_uint(io, avr->state, 1);
+	put_uint(io, avr->interrupt_state, 1);
+	put_bytes(io, avr->sreg, sizeof(avr->sreg));
+	put_bytes(io, avr->data, avr->ramend + 1);
+
+	/* Interrupts */
+	avr_int_table_t *table = &avr->interrupts;
+	int fifo_size = COUNT_OF(table->pending.buffer);
+	int pending = (table->pending.write - table->pending.read) & (fifo_size - 1);
+	put_uint(io, pending, 1);
+	for (int i = 0; i < fifo_size; i++) {
+		if (i < pending) {
+			put_vector(io, avr, table->pending.buffer[(table->pending.read + i) & (fifo_size - 1)]);
+		} else {
+			put_uint(io, 0, 1);
+		}
+	}
+	put_uint(io, table->running_ptr, 1);
+	for (int i = 0; i < COUNT_OF(table->running); i++) {
+		if (i < table->running_ptr) {
+			put_vector(io, avr, table->running[i]);
+		} else {
+			put_uint(io, 0, 1);
+		}
+	}
+	for (int i = 0; i < COUNT_OF(table->vector); i++) {
+		put_uint(io, (i < table->vector_count) ? table->vector[i]->pending : 0, 1);
+	}
+
+	/* EEPROM */
+	put_bytes(io, mcu->eeprom.eeprom, mcu->eeprom.size);
+
+	/* Display controller */
+	put_bytes(io, ssd1306->vram, sizeof(ssd1306->vram));
+	put_uint(io, ssd1306->cursor.page, 1);
+	put_uint(io, ssd1306->cursor.column, 1);
+	put_uint(io, ssd1306->flags, 2);
+	put_uint(io, ssd1306->command_register, 1);
+	put_uint(io, ssd1306->contrast_register, 1);
+	put_uint(io, ssd1306->cs_pin, 1);
+	put_uint(io, ssd1306->di_pin, 1);
+	put_uint(io, ssd1306->spi_data, 1);
+	put_uint(io, ssd1306->reg_write_sz, 1);
+	put_uint(io, ssd1306->addr_mode, 1);
+
+	/* Timers */
+	put_timer(io, &mcu->timer0);
+	put_timer(io, &mcu->timer1);
+	put_timer(io, &mcu->timer3);
+	put_cycle_timers(io, mod);
+
+	/* Statistics */
+	put_uint(io, mod->idle_cycles, 8);
+	put_uint(io, mod->busy_cycles, 8);
+}
+
+int arduboy_avr_get_state_size(struct arduboy_avr_mod_state *mod)
+{
+	if (!mod) {
+		return 0;
+	}
+	struct state_io io = { NULL, 0, 0, false };
+	put_state(&io, mod);
+	return io.pos;
+}
+
+bool arduboy_avr_save_state(struct arduboy_avr_mod_state *mod, uint8_t *buf, int size)
+{
+	int state_size = arduboy_avr_get_state_size(mod);
+	if (!state_size || size < state_size) {
+		return false;
+	}
+	struct state_io io = { buf, state_size, 0, false };
+	put_state(&io, mod);
+	if (io.is_failed) {
+		LOGW("Unknown pointer in the state\n");
+		return false;
+	}
+	return true;
+}
+
+/* Reads the state after the header. The target is left half-written if this fails. */
+static bool get_state(struct state_io *io, struct arduboy_avr_mod_state *mod)
+{
+	/* Core */
+	avr_t *avr = mod->avr;
+	mcu_t *mcu = (mcu_t *) avr;
+	ssd1306_t *ssd1306 = &mod->ssd1306;
+	avr->cycle = get_uint(io, 8);
+	avr->pc = get_uint(io, 4);
+	avr->state = get_uint(io, 1);
+	avr->interrupt_state = (int8_t) get_uint(io, 1);
+	get_bytes(io, avr->sreg, sizeof(avr->sreg));
+	get_bytes(io, avr->data, avr->ramend + 1);
+
+	/* Interrupts */
+	avr_int_table_t *table = &avr->interrupts;
+	int fifo_size = COUNT_OF(table->pending.buffer);
+	int pending = get_uint(io, 1);
+	if (pending >= fifo_size) {
+		io->is_failed = true;
+		pending = 0;
+	}
+	table->pending.read = 0;
+	table->pending.write = pending;
+	for (int i = 0; i < fifo_size; i++) {
+		if (i < pending) {
+			table->pending.buffer[i] = get_vector(io, avr);
+		} else {
+			get_uint(io, 1);
+		}
+	}
+	table->running_ptr = get_uint(io, 1);
+	if (table->running_ptr > COUNT_OF(table->running)) {
+		io->is_failed = true;
+		table->running_ptr = 0;
+	}
+	for (int i = 0; i < COUNT_OF(table->running); i++) {
+		if (i < table->running_ptr) {
+			table->running[i] = get_vector(io, avr);
+		} else {
+			get_uint(io, 1);
+		}
+	}
+	for (int i = 0; i < COUNT_OF(table->vector); i++) {
+		uint8_t is_pending = get_uint(io, 1);
+		if (i < table->vector_count) {
+			table->vector[i]->pending = is_pending;
+		}
+	}
+
+	/* EEPROM */
+	get_bytes(io, mcu->eeprom.eeprom, mcu->eeprom.size);
+
+	/* Display controller */
+	get_bytes(io, ssd1306->vram, sizeof(ssd1306->vram));
+	ssd1306->cursor.page = get_uint(io, 1);
+	ssd1306->cursor.column = get_uint(io, 1);
+	ssd1306->flags = get_uint(io, 2);
+	ssd1306->command_register = get_uint(io, 1);
+	ssd1306->contrast_register = get_uint(io, 1);
+	ssd1306->cs_pin = get_uint(io, 1);
+	ssd1306->di_pin = get_uint(io, 1);
+	ssd1306->spi_data = get_uint(io, 1);
+	ssd1306->reg_write_sz = get_uint(io, 1);
+	ssd1306->addr_mode = get_uint(io, 1);
+
+	/* Timers */
+	get_timer(io, &mcu->timer0);
+	get_timer(io, &mcu->timer1);
+	get_timer(io, &mcu->timer3);
+	get_cycle_timers(io, mod);
+
+	/* Statistics */
+	mod->idle_cycles = get_uint(io, 8);
+	mod->busy_cycles = get_uint(io, 8);
+
+	return !io->is_failed;
+}
+
+bool arduboy_avr_load_state(struct arduboy_avr_mod_state *mod, const uint8_t *buf, int size)
+{
+	int state_size = arduboy_avr_get_state_size(mod);
+	if (!state_size || size < state_size) {
+		return false;
+	}
+	struct state_io io = { (uint8_t *) buf, state_size, 0, false };
+	char magic[8];
+	get_bytes(&io, magic, sizeof(magic));
+	uint32_t version = get_uint(&io, 4);
+	uint32_t code_hash = get_uint(&io, 4);
+	uint32_t rom_hash = get_uint(&io, 4);
+	uint32_t saved_size = get_uint(&io, 4);
+	if (memcmp(magic, STATE_MAGIC, sizeof(magic)) || version != STATE_VERSION ||
+			code_hash != get_code_segment()->hash || saved_size != (uint32_t) state_size) {
+		LOGW("Incompatible state\n");
+		return false;
+	}
+	if (rom_hash != mod->rom_hash) {
+		LOGW("State of another program\n");
+		return false;
+	}
+	int header_size = io.pos;
+
+	/* Keep the current state to go back to if the rest turns out to be broken */
+	if (!mod->state_backup) {
+		mod->state_backup = malloc(state_size);
+	}
+	if (!mod->state_backup || !arduboy_avr_save_state(mod, mod->state_backup, state_size)) {
+		return false;
+	}
+	bool ret = get_state(&io, mod);
+	if (!ret) {
+		LOGW("Broken state\n");
+		struct state_io backup_io = { mod->state_backup, state_size, header_size, false };
+		get_state(&backup_io, mod);
+	}
+	update_lumamap(mod);
+	mod->is_display_hash_valid = false;
+	mod->rendered_ctrl = NULL;
+	mod->rendered_bits_ctrl = NULL;
+	mod->loop.phase = BUSY_LOOP_IDLE;
+	mod->yield = false;
+	return ret;
+}
+
+/*------------------------------------------------------------------------------------------------*/
+
+void arduboy_avr_teardown(struct arduboy_avr_mod_state *mod)
 {
-	if (mod_s.avr) {
-		avr_terminate(mod_s.avr);
-		mod_s.avr = NULL;
+	if (mod) {
+		avr_terminate(mod->avr);
+		free(mod->loop.ram);
+		free(mod->state_backup);
+		free_blocks(mod);
+		free(mod->insn_cache);
+		free(mod->blocks);
+		free(mod->block_hits);
+		free(mod);
 		LOGI("Terminate AVR\n");
 	}
 }
@@ -18,16 +18,28 @@
 
 
 #include <stdbool.h>
-#include <android/log.h>
+#include <stdint.h>
 
 #define OLED_WIDTH_PX (128)
 #define OLED_HEIGHT_PX (64)
 
 #define LOG_TAG "ArbyEmulator"
+#ifdef __ANDROID__
+#include <android/log.h>
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, LOG_TAG, __VA_ARGS__)
 #define LOGW(...) __android_log_print(ANDROID_LOG_WARN, LOG_TAG, __VA_ARGS__)
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, LOG_TAG, __VA_ARGS__)
 #define LOGD(...) __android_log_print(ANDROID_LOG_DEBUG, LOG_TAG, __VA_ARGS__)
+#else
+/* Host build (see host/Makefile) */
+#include <stdio.h>
+#define HOST_LOG(level, ...) \
+	do { fprintf(stderr, level "/" LOG_TAG ": "); fprintf(stderr, __VA_ARGS__); } while (0)
+#define LOGE(...) HOST_LOG("E", __VA_ARGS__)
+#define LOGW(...) HOST_LOG("W", __VA_ARGS__)
+#define LOGI(...) HOST_LOG("I", __VA_ARGS__)
+#define LOGD(...) HOST_LOG("D", __VA_ARGS__)
+#endif
 
 enum button_e {
 	BTN_UP = 0,
@@ -48,11 +60,50 @@ enum led_e {
 	LED_COUNT,
 };
 
-int arduboy_avr_setup(const char *hex_file_path, bool is_tuned);
-bool arduboy_avr_get_eeprom(char *p_array);
-bool arduboy_avr_set_eeprom(const char *p_array);
-bool arduboy_avr_set_refresh_timing(bool is_postpone);
-bool arduboy_avr_button_event(enum button_e btn_e, bool pressed);
-bool arduboy_avr_loop(int *pixels);
-bool arduboy_avr_get_led_state(int *leds);
-void arduboy_avr_teardown(void);
+enum step_status_e {
+	STEP_RUNNING = 0,
+	STEP_DONE,
+	STEP_CRASHED,
+	STEP_INVALID,
+};
+
+enum step_flag_e {
+	STEP_FLAG_RENDER_PIXELS = 1 << 0,	// render ARGB pixels into the control block
+	STEP_FLAG_SKIP_BUSY_LOOP = 1 << 1,	// fast-forward busy-wait loops
+	STEP_FLAG_PREDECODE = 1 << 2,	// run frequent instructions from the predecoded cache
+	STEP_FLAG_TRANSLATE = 1 << 3,	// run hot basic blocks as a whole, implies STEP_FLAG_PREDECODE
+	STEP_FLAG_RENDER_BITS = 1 << 4,	// render packed 1-bit pixels into the control block
+};
+
+/* Control block shared with Java side as a direct ByteBuffer (native byte order) */
+struct arduboy_avr_ctrl {
+	int32_t buttons;	// in:  bitmask of pressed buttons (1 << button_e)
+	int32_t flags;		// in:  step_flag_e
+	int32_t status;		// out: step_status_e
+	int32_t leds[LED_COUNT];	// out: brightness of each LED (0-255)
+	int32_t frames;		// out: number of frames actually emulated
+	int64_t cycles;		// out: total AVR cycle count
+	int32_t dirty;		// out: non-zero if the screen has changed since the last step
+	int32_t hash;		// out: hash of the screen contents
+	int64_t idle_cycles;	// out: total AVR cycles skipped while sleeping
+	int64_t busy_cycles;	// out: total AVR cycles skipped in busy-wait loops
+	uint8_t bits[OLED_WIDTH_PX * OLED_HEIGHT_PX / 8];	// out: 1-bit pixels, row-major, MSB first
+	int32_t pixels[OLED_WIDTH_PX * OLED_HEIGHT_PX];	// out: ARGB pixels of the last frame
+};
+
+struct arduboy_avr_mod_state;
+
+struct arduboy_avr_mod_state *arduboy_avr_setup(const char *hex_file_path, bool is_tuned);
+bool arduboy_avr_get_eeprom(struct arduboy_avr_mod_state *mod, char *p_array);
+bool arduboy_avr_set_eeprom(struct arduboy_avr_mod_state *mod, const char *p_array);
+bool arduboy_avr_set_refresh_timing(struct arduboy_avr_mod_state *mod, bool is_postpone);
+bool arduboy_avr_button_event(struct arduboy_avr_mod_state *mod, enum button_e btn_e, bool pressed);
+bool arduboy_avr_loop(struct arduboy_avr_mod_state *mod, int *pixels);
+bool arduboy_avr_get_led_state(struct arduboy_avr_mod_state *mod, int *leds);
+void arduboy_avr_set_ctrl(struct arduboy_avr_mod_state *mod, struct arduboy_avr_ctrl *ctrl);
+bool arduboy_avr_step(struct arduboy_avr_mod_state *mod, int frames);
+bool arduboy_avr_render(struct arduboy_avr_mod_state *mod, int *pixels, int stride);
+int arduboy_avr_get_state_size(struct arduboy_avr_mod_state *mod);
+bool arduboy_avr_save_state(struct arduboy_avr_mod_state *mod, uint8_t *buf, int size);
+bool arduboy_avr_load_state(struct arduboy_avr_mod_state *mod, const uint8_t *buf, int size);
+void arduboy_avr_teardown(struct arduboy_avr_mod_state *mod);
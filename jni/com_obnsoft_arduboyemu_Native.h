@@ -21,69 +21,161 @@ extern "C" {
 #define com_obnsoft_arduboyemu_Native_BUTTON_B 5L
 #undef com_obnsoft_arduboyemu_Native_BUTTON_MAX
 #define com_obnsoft_arduboyemu_Native_BUTTON_MAX 6L
+#undef com_obnsoft_arduboyemu_Native_STATUS_RUNNING
+#define com_obnsoft_arduboyemu_Native_STATUS_RUNNING 0L
+#undef com_obnsoft_arduboyemu_Native_STATUS_DONE
+#define com_obnsoft_arduboyemu_Native_STATUS_DONE 1L
+#undef com_obnsoft_arduboyemu_Native_STATUS_CRASHED
+#define com_obnsoft_arduboyemu_Native_STATUS_CRASHED 2L
+#undef com_obnsoft_arduboyemu_Native_STATUS_INVALID
+#define com_obnsoft_arduboyemu_Native_STATUS_INVALID 3L
+#undef com_obnsoft_arduboyemu_Native_FLAG_RENDER_PIXELS
+#define com_obnsoft_arduboyemu_Native_FLAG_RENDER_PIXELS 1L
+#undef com_obnsoft_arduboyemu_Native_FLAG_SKIP_BUSY_LOOP
+#define com_obnsoft_arduboyemu_Native_FLAG_SKIP_BUSY_LOOP 2L
+#undef com_obnsoft_arduboyemu_Native_FLAG_PREDECODE
+#define com_obnsoft_arduboyemu_Native_FLAG_PREDECODE 4L
+#undef com_obnsoft_arduboyemu_Native_FLAG_TRANSLATE
+#define com_obnsoft_arduboyemu_Native_FLAG_TRANSLATE 8L
+#undef com_obnsoft_arduboyemu_Native_FLAG_RENDER_BITS
+#define com_obnsoft_arduboyemu_Native_FLAG_RENDER_BITS 16L
+#undef com_obnsoft_arduboyemu_Native_CTRL_BUTTONS
+#define com_obnsoft_arduboyemu_Native_CTRL_BUTTONS 0L
+#undef com_obnsoft_arduboyemu_Native_CTRL_FLAGS
+#define com_obnsoft_arduboyemu_Native_CTRL_FLAGS 4L
+#undef com_obnsoft_arduboyemu_Native_CTRL_STATUS
+#define com_obnsoft_arduboyemu_Native_CTRL_STATUS 8L
+#undef com_obnsoft_arduboyemu_Native_CTRL_LEDS
+#define com_obnsoft_arduboyemu_Native_CTRL_LEDS 12L
+#undef com_obnsoft_arduboyemu_Native_CTRL_FRAMES
+#define com_obnsoft_arduboyemu_Native_CTRL_FRAMES 32L
+#undef com_obnsoft_arduboyemu_Native_CTRL_CYCLES
+#define com_obnsoft_arduboyemu_Native_CTRL_CYCLES 40L
+#undef com_obnsoft_arduboyemu_Native_CTRL_DIRTY
+#define com_obnsoft_arduboyemu_Native_CTRL_DIRTY 48L
+#undef com_obnsoft_arduboyemu_Native_CTRL_HASH
+#define com_obnsoft_arduboyemu_Native_CTRL_HASH 52L
+#undef com_obnsoft_arduboyemu_Native_CTRL_IDLE_CYCLES
+#define com_obnsoft_arduboyemu_Native_CTRL_IDLE_CYCLES 56L
+#undef com_obnsoft_arduboyemu_Native_CTRL_BUSY_CYCLES
+#define com_obnsoft_arduboyemu_Native_CTRL_BUSY_CYCLES 64L
+#undef com_obnsoft_arduboyemu_Native_CTRL_BITS
+#define com_obnsoft_arduboyemu_Native_CTRL_BITS 72L
+#undef com_obnsoft_arduboyemu_Native_CTRL_PIXELS
+#define com_obnsoft_arduboyemu_Native_CTRL_PIXELS 1096L
+#undef com_obnsoft_arduboyemu_Native_CTRL_SIZE
+#define com_obnsoft_arduboyemu_Native_CTRL_SIZE 33864L
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    setup
- * Signature: (Ljava/lang/String;Z)Z
+ * Signature: (Ljava/lang/String;Z)J
  */
-JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_setup
+JNIEXPORT jlong JNICALL Java_com_obnsoft_arduboyemu_Native_setup
   (JNIEnv *, jclass, jstring, jboolean);
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    getEeprom
- * Signature: ([B)Z
+ * Signature: (J[B)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_getEeprom
-  (JNIEnv *, jclass, jbyteArray);
+  (JNIEnv *, jclass, jlong, jbyteArray);
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    setEeprom
- * Signature: ([B)Z
+ * Signature: (J[B)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_setEeprom
-  (JNIEnv *, jclass, jbyteArray);
+  (JNIEnv *, jclass, jlong, jbyteArray);
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    setRefreshTiming
- * Signature: (Z)Z
+ * Signature: (JZ)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_setRefreshTiming
-  (JNIEnv *, jclass, jboolean);
+  (JNIEnv *, jclass, jlong, jboolean);
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    buttonEvent
- * Signature: (IZ)Z
+ * Signature: (JIZ)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_buttonEvent
-  (JNIEnv *, jclass, jint, jboolean);
+  (JNIEnv *, jclass, jlong, jint, jboolean);
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    loop
- * Signature: ([I)Z
+ * Signature: (J[I)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_loop
-  (JNIEnv *, jclass, jintArray);
+  (JNIEnv *, jclass, jlong, jintArray);
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    getLedState
- * Signature: ([I)Z
+ * Signature: (J[I)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_getLedState
-  (JNIEnv *, jclass, jintArray);
+  (JNIEnv *, jclass, jlong, jintArray);
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    setControlBlock
+ * Signature: (JLjava/nio/ByteBuffer;)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_setControlBlock
+  (JNIEnv *, jclass, jlong, jobject);
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    step
+ * Signature: (JI)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_step
+  (JNIEnv *, jclass, jlong, jint);
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    renderBitmap
+ * Signature: (JLandroid/graphics/Bitmap;)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_renderBitmap
+  (JNIEnv *, jclass, jlong, jobject);
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    getStateSize
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_obnsoft_arduboyemu_Native_getStateSize
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    saveState
+ * Signature: (J[B)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_saveState
+  (JNIEnv *, jclass, jlong, jbyteArray);
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    loadState
+ * Signature: (J[B)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_loadState
+  (JNIEnv *, jclass, jlong, jbyteArray);
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    teardown
- * Signature: ()V
+ * Signature: (J)V
  */
 JNIEXPORT void JNICALL Java_com_obnsoft_arduboyemu_Native_teardown
-  (JNIEnv *, jclass);
+  (JNIEnv *, jclass, jlong);
 
 #ifdef __cplusplus
 }
@@ -18,38 +18,44 @@
 
 
 #include <stdio.h>
+#include <stdint.h>
+#ifdef __ANDROID__
+#include <android/bitmap.h>
+#endif
 #include "arduboy_avr.h"
 #include "com_obnsoft_arduboyemu_Native.h"
 
 #define EEPROM_SIZE 1024
 
+#define MOD(handle) ((struct arduboy_avr_mod_state *) (intptr_t) (handle))
+
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    setup
- * Signature: (Ljava/lang/String;Z)Z
+ * Signature: (Ljava/lang/String;Z)J
  */
-JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_setup(
+JNIEXPORT jlong JNICALL Java_com_obnsoft_arduboyemu_Native_setup(
         JNIEnv *env, jclass obj, jstring js_path, jboolean is_tuned) {
-    int ret;
+    struct arduboy_avr_mod_state *mod;
     const char *path = (*env)->GetStringUTFChars(env, js_path, NULL);
-    ret = arduboy_avr_setup(path, is_tuned);
+    mod = arduboy_avr_setup(path, is_tuned);
     (*env)->ReleaseStringUTFChars(env, js_path, path);
-    return !ret;
+    return (jlong) (intptr_t) mod;
 }
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    getEeprom
- * Signature: ([B)Z
+ * Signature: (J[B)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_getEeprom(
-        JNIEnv *env, jclass obj, jbyteArray jbyte_array) {
+        JNIEnv *env, jclass obj, jlong handle, jbyteArray jbyte_array) {
     jboolean ret;
     jbyte *p_array = (*env)->GetByteArrayElements(env, jbyte_array, &ret);
     int array_len = (*env)->GetArrayLength(env, jbyte_array);
 
     if (array_len >= EEPROM_SIZE) {
-        ret = arduboy_avr_get_eeprom((char *) p_array);
+        ret = arduboy_avr_get_eeprom(MOD(handle), (char *) p_array);
     } else {
         ret = JNI_FALSE;
     }
@@ -61,16 +67,16 @@ JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_getEeprom(
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    setEeprom
- * Signature: ([B)Z
+ * Signature: (J[B)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_setEeprom(
-        JNIEnv *env, jclass obj, jbyteArray jbyte_array) {
+        JNIEnv *env, jclass obj, jlong handle, jbyteArray jbyte_array) {
     jboolean ret;
     jbyte *p_array = (*env)->GetByteArrayElements(env, jbyte_array, &ret);
     int array_len = (*env)->GetArrayLength(env, jbyte_array);
 
     if (array_len >= EEPROM_SIZE) {
-        ret = arduboy_avr_set_eeprom((const char *) p_array);
+        ret = arduboy_avr_set_eeprom(MOD(handle), (const char *) p_array);
     } else {
         ret = JNI_FALSE;
     }
@@ -82,37 +88,37 @@ JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_setEeprom(
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    setRefreshTiming
- * Signature: (Z)Z
+ * Signature: (JZ)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_setRefreshTiming(
-        JNIEnv *env, jclass obj, jboolean is_postpone) {
-    jboolean ret = arduboy_avr_set_refresh_timing(is_postpone);
+        JNIEnv *env, jclass obj, jlong handle, jboolean is_postpone) {
+    jboolean ret = arduboy_avr_set_refresh_timing(MOD(handle), is_postpone);
     return ret;
 }
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    buttonEvent
- * Signature: (IZ)Z
+ * Signature: (JIZ)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_buttonEvent(
-        JNIEnv *env, jclass obj, jint key, jboolean is_press) {
-    return arduboy_avr_button_event((enum button_e) key, is_press);
+        JNIEnv *env, jclass obj, jlong handle, jint key, jboolean is_press) {
+    return arduboy_avr_button_event(MOD(handle), (enum button_e) key, is_press);
 }
 
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    loop
- * Signature: ([I)Z
+ * Signature: (J[I)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_loop(
-        JNIEnv *env, jclass obj, jintArray jint_array) {
+        JNIEnv *env, jclass obj, jlong handle, jintArray jint_array) {
     jboolean ret;
     jint *p_array = (*env)->GetIntArrayElements(env, jint_array, &ret);
     int array_len = (*env)->GetArrayLength(env, jint_array);
 
     if (array_len >= OLED_WIDTH_PX * OLED_HEIGHT_PX) {
-        ret = arduboy_avr_loop(p_array);
+        ret = arduboy_avr_loop(MOD(handle), p_array);
     } else {
         ret = JNI_FALSE;
     }
@@ -124,16 +130,16 @@ JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_loop(
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    getLedState
- * Signature: ([I)Z
+ * Signature: (J[I)Z
  */
 JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_getLedState(
-        JNIEnv *env, jclass obj, jintArray jint_array) {
+        JNIEnv *env, jclass obj, jlong handle, jintArray jint_array) {
     jboolean ret;
     jint *p_array = (*env)->GetIntArrayElements(env, jint_array, &ret);
     int array_len = (*env)->GetArrayLength(env, jint_array);
 
     if (array_len >= LED_COUNT) {
-        ret = arduboy_avr_get_led_state(p_array);
+        ret = arduboy_avr_get_led_state(MOD(handle), p_array);
     } else {
         ret = JNI_FALSE;
     }
@@ -142,13 +148,115 @@ JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_getLedState(
     return ret;
 }
 
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    setControlBlock
+ * Signature: (JLjava/nio/ByteBuffer;)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_setControlBlock(
+        JNIEnv *env, jclass obj, jlong handle, jobject jbuffer) {
+    if (MOD(handle) == NULL) {
+        return JNI_FALSE;
+    }
+    if (jbuffer == NULL) {
+        arduboy_avr_set_ctrl(MOD(handle), NULL);
+        return JNI_TRUE;
+    }
+    void *p_buffer = (*env)->GetDirectBufferAddress(env, jbuffer);
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, jbuffer);
+    if (p_buffer == NULL || capacity < (jlong) sizeof(struct arduboy_avr_ctrl)) {
+        arduboy_avr_set_ctrl(MOD(handle), NULL);
+        return JNI_FALSE;
+    }
+    arduboy_avr_set_ctrl(MOD(handle), (struct arduboy_avr_ctrl *) p_buffer);
+    return JNI_TRUE;
+}
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    step
+ * Signature: (JI)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_step(
+        JNIEnv *env, jclass obj, jlong handle, jint frames) {
+    return arduboy_avr_step(MOD(handle), frames);
+}
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    renderBitmap
+ * Signature: (JLandroid/graphics/Bitmap;)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_renderBitmap(
+        JNIEnv *env, jclass obj, jlong handle, jobject jbitmap) {
+#ifdef __ANDROID__
+    AndroidBitmapInfo info;
+    void *p_pixels;
+    jboolean ret;
+
+    if (AndroidBitmap_getInfo(env, jbitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS
+            || info.format != ANDROID_BITMAP_FORMAT_RGBA_8888
+            || info.width < OLED_WIDTH_PX || info.height < OLED_HEIGHT_PX) {
+        return JNI_FALSE;
+    }
+    if (AndroidBitmap_lockPixels(env, jbitmap, &p_pixels) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        return JNI_FALSE;
+    }
+    ret = arduboy_avr_render(MOD(handle), (int *) p_pixels, info.stride / sizeof(int));
+    AndroidBitmap_unlockPixels(env, jbitmap);
+    return ret;
+#else
+    return JNI_FALSE; // no android.graphics.Bitmap on host
+#endif
+}
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    getStateSize
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_com_obnsoft_arduboyemu_Native_getStateSize(
+        JNIEnv *env, jclass obj, jlong handle) {
+    return arduboy_avr_get_state_size(MOD(handle));
+}
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    saveState
+ * Signature: (J[B)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_saveState(
+        JNIEnv *env, jclass obj, jlong handle, jbyteArray jbyte_array) {
+    jboolean ret;
+    jbyte *p_array = (*env)->GetByteArrayElements(env, jbyte_array, &ret);
+    int array_len = (*env)->GetArrayLength(env, jbyte_array);
+    ret = arduboy_avr_save_state(MOD(handle), (uint8_t *) p_array, array_len);
+    (*env)->ReleaseByteArrayElements(env, jbyte_array, p_array, 0);
+    return ret;
+}
+
+/*
+ * Class:     com_obnsoft_arduboyemu_Native
+ * Method:    loadState
+ * Signature: (J[B)Z
+ */
+JNIEXPORT jboolean JNICALL Java_com_obnsoft_arduboyemu_Native_loadState(
+        JNIEnv *env, jclass obj, jlong handle, jbyteArray jbyte_array) {
+    jboolean ret;
+    jbyte *p_array = (*env)->GetByteArrayElements(env, jbyte_array, &ret);
+    int array_len = (*env)->GetArrayLength(env, jbyte_array);
+    ret = arduboy_avr_load_state(MOD(handle), (const uint8_t *) p_array, array_len);
+    (*env)->ReleaseByteArrayElements(env, jbyte_array, p_array, JNI_ABORT);
+    return ret;
+}
+
 /*
  * Class:     com_obnsoft_arduboyemu_Native
  * Method:    teardown
- * Signature: ()V
+ * Signature: (J)V
  */
 JNIEXPORT void JNICALL Java_com_obnsoft_arduboyemu_Native_teardown(
-        JNIEnv *env, jclass obj) {
-    arduboy_avr_teardown();
+        JNIEnv *env, jclass obj, jlong handle) {
+    arduboy_avr_teardown(MOD(handle));
 }
 
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads a raw movie file written by ArbyWriter record by record.
+ */
+public class ArbyReader {
+
+    private FileInputStream mInput;
+    private ByteBuffer  mBuffer;
+    private int         mFps;
+    private long        mTime;
+    private boolean     mIsScreenChanged;
+    private boolean     mIsLedsChanged;
+    private byte[]      mScreen = new byte[ArbyWriter.SCREEN_SIZE];
+    private byte[]      mScratch;
+    private int[]       mLeds = new int[ArbyWriter.LEDS_SIZE];
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Opens the file and reads its header.
+     *
+     * @throws IOException if the file isn't a valid raw movie.
+     */
+    public ArbyReader(File file) throws IOException {
+        mInput = new FileInputStream(file);
+        try {
+            FileChannel channel = mInput.getChannel();
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            byte[] magic = new byte[ArbyWriter.MAGIC.length];
+            mBuffer.get(magic);
+            int version = mBuffer.getShort();
+            mFps = mBuffer.getShort();
+            int width = mBuffer.getShort();
+            int height = mBuffer.getShort();
+            if (!Arrays.equals(magic, ArbyWriter.MAGIC) || version != ArbyWriter.VERSION
+                    || width != ArbyWriter.WIDTH || height != ArbyWriter.HEIGHT || mFps <= 0) {
+                throw new IOException("Not a raw movie file: " + file);
+            }
+        } catch (BufferUnderflowException e) {
+            close();
+            throw new IOException("Too short raw movie file: " + file);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public int getFps() {
+        return mFps;
+    }
+
+    /**
+     * @return elapsed frames from the beginning until the current record.
+     */
+    public long getTime() {
+        return mTime;
+    }
+
+    public boolean isScreenChanged() {
+        return mIsScreenChanged;
+    }
+
+    /**
+     * @return packed 1-bit pixels at the current record, row-major and MSB first.
+     */
+    public byte[] getScreen() {
+        return mScreen;
+    }
+
+    public boolean isLedsChanged() {
+        return mIsLedsChanged;
+    }
+
+    /**
+     * @return levels of red, green and blue, and states of RX and TX at the current record.
+     */
+    public int[] getLeds() {
+        return mLeds;
+    }
+
+    /**
+     * Advances to the next record.
+     *
+     * @return false at the end of the file, including an incomplete record.
+     */
+    public boolean next() {
+        if (mBuffer == null) {
+            return false;
+        }
+        try {
+            int type = mBuffer.get();
+            long frames = getVarint(mBuffer);
+            if (type == 0 && frames == 0) {
+                return false;
+            }
+            mTime += frames;
+            mIsScreenChanged = ((type & ArbyWriter.RECORD_SCREEN) != 0);
+            mIsLedsChanged = ((type & ArbyWriter.RECORD_LEDS) != 0);
+            if (mIsScreenChanged) {
+                int length = (int) getVarint(mBuffer);
+                if (mScratch == null || mScratch.length < length) {
+                    mScratch = new byte[length];
+                }
+                mBuffer.get(mScratch, 0, length);
+                RewindBuffer.applyXor(mScratch, 0, length, mScreen);
+            }
+            if (mIsLedsChanged) {
+                for (int i = 0; i < ArbyWriter.LEDS_SIZE; i++) {
+                    mLeds[i] = mBuffer.get() & 0xFF;
+                }
+            }
+            return true;
+        } catch (BufferUnderflowException e) {
+            return false;
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return false; // broken screen data
+        }
+    }
+
+    public void close() {
+        mBuffer = null;
+        if (mInput != null) {
+            try {
+                mInput.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mInput = null;
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private static long getVarint(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+}
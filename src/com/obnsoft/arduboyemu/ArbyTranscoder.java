@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Converts raw movie files (.arby) into animated GIF, or APNG if the output file name ends
+ * with ".png". This class must not depend on Android framework so that it works on a plain JVM.
+ *
+ * <pre>
+ * java -cp jni/host/out/classes com.obnsoft.arduboyemu.ArbyTranscoder [-j threads] \
+ *     file.arby [file.gif|file.png]
+ * </pre>
+ * GIF images are encoded in parallel by as many threads as processors by default, and the
+ * output is the same as encoding them one by one.
+ */
+public class ArbyTranscoder {
+
+    private static final String EXT_GIF = ".gif";
+    private static final String EXT_PNG = ".png";
+    private static final String WORK_FILE_SUFFIX = ".tmp";
+
+    /*-----------------------------------------------------------------------*/
+
+    public static void main(String[] args) {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int argIdx = 0;
+        try {
+            if (args.length >= 2 && "-j".equals(args[0])) {
+                threads = Integer.parseInt(args[1]);
+                argIdx = 2;
+            }
+        } catch (NumberFormatException e) {
+            threads = 0;
+        }
+        if (threads <= 0 || args.length - argIdx < 1 || args.length - argIdx > 2) {
+            System.err.println(
+                    "Usage: ArbyTranscoder [-j threads] <file.arby> [file.gif|file.png]");
+            System.exit(1);
+        }
+        File inFile = new File(args[argIdx]);
+        File outFile;
+        if (args.length - argIdx >= 2) {
+            outFile = new File(args[argIdx + 1]);
+        } else {
+            String path = inFile.getPath();
+            if (path.endsWith(ArbyWriter.EXTENSION)) {
+                path = path.substring(0, path.length() - ArbyWriter.EXTENSION.length());
+            }
+            outFile = new File(path + EXT_GIF);
+        }
+        try {
+            if (!transcode(inFile, outFile, threads)) {
+                System.err.println("Failed to write " + outFile);
+                System.exit(1);
+            }
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Converts the raw movie into GIF or APNG. Each image lasts until the next screen change,
+     * and the last one lasts until the end of the recording.
+     *
+     * @param threads number of threads to encode GIF images.
+     * @return false if the GIF file can't be written.
+     * @throws IOException if the raw movie can't be read.
+     */
+    public static boolean transcode(File inFile, File outFile, int threads) throws IOException {
+        ArbyReader reader = new ArbyReader(inFile);
+        boolean isPng = outFile.getName().toLowerCase(Locale.US).endsWith(EXT_PNG);
+        ExecutorService executor = (threads > 1 && !isPng)
+                ? Executors.newFixedThreadPool(threads) : null;
+        try {
+            MovieEncoder encoder;
+            if (isPng) {
+                encoder = new PngEncoder();
+            } else {
+                GifEncoder gifEncoder = new GifEncoder();
+                gifEncoder.setExecutor(executor);
+                encoder = gifEncoder;
+            }
+            if (!encoder.start(new File(outFile.getPath() + WORK_FILE_SUFFIX),
+                    reader.getFps())) {
+                return false;
+            }
+            long imageTime = -1;
+            while (reader.next()) {
+                if (reader.isScreenChanged()) {
+                    long time = reader.getTime();
+                    if (imageTime >= 0) {
+                        addRepeatedFrames(encoder, time - imageTime - 1);
+                    }
+                    encoder.addPackedFrame(reader.getScreen());
+                    imageTime = time;
+                }
+            }
+            if (imageTime >= 0) {
+                addRepeatedFrames(encoder, reader.getTime() - imageTime - 1);
+            }
+            return encoder.finish(outFile);
+        } finally {
+            reader.close();
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private static void addRepeatedFrames(MovieEncoder encoder, long frames) {
+        for (long i = 0; i < frames; i++) {
+            encoder.addRepeatedFrame();
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records the screen and LEDs into a raw movie file (.arby), which is much cheaper
+ * than encoding GIF in real time. Records are collected in a direct buffer, and full
+ * buffers are written to the file by a writer thread.
+ *
+ * <pre>
+ * header:  "ARBY", version (u16), fps (u16), width (u16), height (u16), all little endian
+ * record:  type (u8), elapsed frames since the previous record (varint),
+ *          [screen: data length (varint), XOR with the previous screen by RewindBuffer.encode()]
+ *          [leds: red, green, blue, rx, tx (u8 each)]
+ * </pre>
+ * The screen is packed 1-bit pixels, row-major and MSB first. A record with type 0 and
+ * 0 elapsed frames terminates the file, which is also what a zero-filled tail reads as.
+ */
+public class ArbyWriter {
+
+    public static final String EXTENSION = ".arby";
+
+    static final byte[] MAGIC = { 'A', 'R', 'B', 'Y' };
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 12;
+    static final int WIDTH = 128;
+    static final int HEIGHT = 64;
+    static final int SCREEN_SIZE = WIDTH * HEIGHT / 8;
+    static final int LEDS_SIZE = 5;
+
+    static final int RECORD_SCREEN = 1;
+    static final int RECORD_LEDS = 2;
+
+    private static final int BUFFER_SIZE = ChannelOutputStream.DEFAULT_BUFFER_SIZE;
+    private static final int MAX_RECORD_SIZE = 1 + 10 + 5 + LEDS_SIZE
+            + SCREEN_SIZE + SCREEN_SIZE / RewindBuffer.MIN_ZERO_RUN * 2 + 16;
+
+    private File        mFile;
+    private FileChannel mChannel;
+    private ByteBuffer  mBuffer;        // records being added
+    private ByteBuffer  mSpareBuffer;   // null while it's being written
+    private ByteBuffer  mQueuedBuffer;  // to be written by the writer thread
+    private IOException mWriteError;
+    private byte[]      mScreen = new byte[SCREEN_SIZE];
+    private byte[]      mScratch = new byte[MAX_RECORD_SIZE];
+    private byte[]      mLeds = new byte[LEDS_SIZE];
+    private long        mPendingFrames;
+    private boolean     mHasScreen;
+
+    /*-----------------------------------------------------------------------*/
+
+    public ArbyWriter(File file, int fps) throws IOException {
+        mFile = file;
+        final FileChannel channel = new FileOutputStream(file).getChannel();
+        mChannel = channel;
+        mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        mSpareBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.put(MAGIC);
+        mBuffer.putShort((short) VERSION);
+        mBuffer.putShort((short) fps);
+        mBuffer.putShort((short) WIDTH);
+        mBuffer.putShort((short) HEIGHT);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBuffers(channel);
+            }
+        }).start();
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Adds the state after the specified number of frames have elapsed.
+     * Nothing is written unless the screen or the LEDs have changed.
+     *
+     * @param bits packed 1-bit pixels, or null if the screen isn't updated.
+     * @param leds levels of red, green and blue, and states of RX and TX.
+     * @return false if the writer has been closed.
+     */
+    public synchronized boolean addFrame(byte[] bits, int[] leds, int frames)
+            throws IOException {
+        if (mChannel == null) {
+            return false;
+        }
+        mPendingFrames += frames;
+        int type = 0;
+        int screenLength = 0;
+        if (bits != null) {
+            screenLength = RewindBuffer.encode(bits, mScreen, mScratch);
+            if (screenLength > 0 || !mHasScreen) {
+                System.arraycopy(bits, 0, mScreen, 0, SCREEN_SIZE);
+                mHasScreen = true;
+                type |= RECORD_SCREEN;
+            }
+        }
+        for (int i = 0; i < LEDS_SIZE; i++) {
+            byte led = (byte) Math.min(Math.max(leds[i], 0), 255);
+            if (led != mLeds[i]) {
+                mLeds[i] = led;
+                type |= RECORD_LEDS;
+            }
+        }
+        if (type != 0) {
+            writeRecord(type, screenLength);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the remaining time and the terminator, and waits for the file to be written.
+     */
+    public synchronized void close() throws IOException {
+        if (mChannel == null) {
+            return;
+        }
+        try {
+            if (mPendingFrames > 0) {
+                writeRecord(0, 0);
+            }
+            writeRecord(0, 0); // terminator
+            queueBuffer();
+            waitWritten();
+            if (mWriteError != null) {
+                throw mWriteError;
+            }
+        } finally {
+            mChannel.close();
+            mChannel = null;
+            notifyAll(); // let the writer thread finish
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void writeRecord(int type, int screenLength) throws IOException {
+        if (mBuffer.remaining() < MAX_RECORD_SIZE) {
+            queueBuffer();
+        }
+        mBuffer.put((byte) type);
+        putVarint(mBuffer, mPendingFrames);
+        if ((type & RECORD_SCREEN) != 0) {
+            putVarint(mBuffer, screenLength);
+            mBuffer.put(mScratch, 0, screenLength);
+        }
+        if ((type & RECORD_LEDS) != 0) {
+            mBuffer.put(mLeds);
+        }
+        mPendingFrames = 0;
+    }
+
+    /**
+     * Hands the current buffer to the writer thread and continues with the spare one.
+     * This waits only if the writer thread hasn't finished the previous buffer yet.
+     */
+    private void queueBuffer() throws IOException {
+        waitWritten();
+        if (mWriteError != null) {
+            throw mWriteError;
+        }
+        mBuffer.flip();
+        mQueuedBuffer = mBuffer;
+        mBuffer = mSpareBuffer;
+        mSpareBuffer = null;
+        notifyAll();
+    }
+
+    private void waitWritten() throws IOException {
+        while (mSpareBuffer == null) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Writes queued buffers until the writer is closed. Runs on the writer thread.
+     */
+    private void writeBuffers(FileChannel channel) {
+        while (true) {
+            ByteBuffer buffer;
+            synchronized (this) {
+                while (mQueuedBuffer == null && mChannel != null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mQueuedBuffer == null) {
+                    return;
+                }
+                buffer = mQueuedBuffer;
+                mQueuedBuffer = null;
+            }
+            IOException error = null;
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            synchronized (this) {
+                buffer.clear();
+                mSpareBuffer = buffer;
+                if (error != null && mWriteError == null) {
+                    mWriteError = error;
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    private static void putVarint(ByteBuffer buffer, long value) {
+        while (value >= 0x80) {
+            buffer.put((byte) (value | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+}
@@ -18,7 +18,6 @@
 
 package com.obnsoft.arduboyemu;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -27,7 +26,13 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.zip.Deflater;
 
 import com.obnsoft.arduboyemu.Utils.CancelCallback;
 
@@ -45,6 +50,8 @@ public class ArduboyEmulator {
     public static final int EEPROM_SIZE = 1024;
 
     private static final int PIXELS_SIZE = SCREEN_WIDTH * SCREEN_HEIGHT;
+    private static final int BITS_SIZE = PIXELS_SIZE / 8;
+    private static final int ROW_BYTES = SCREEN_WIDTH / 8;
 
     private static final int LED_RED    = 0;
     private static final int LED_GREEN  = 1;
@@ -53,7 +60,17 @@ public class ArduboyEmulator {
     private static final int LED_TX     = 4;
     private static final int LEDS_SIZE  = 5;
 
+    public static final int INTERPRETER_SIMAVR = 0;
+    public static final int INTERPRETER_PREDECODE = 1;
+    public static final int INTERPRETER_TRANSLATE = 2;
+
+    public static final int TURBO_OFF = 1;
+    public static final int TURBO_MAX = 0;
+
+    private static final int TURBO_MAX_FRAMES = 16;
+
     private static final int ONE_SECOND = 1000;
+    private static final long ONE_SECOND_NS = 1000000000L;
 
     private static final String EEPROM_FILE_NAME = "eeprom.bin";
     private static final CancelCallback EEPROM_CALLBACK = new CancelCallback() {
@@ -63,26 +80,78 @@ public class ArduboyEmulator {
         }
     };
 
+    public static final int STATE_SLOTS = 4;
+    private static final String STATE_DIR_NAME = "states";
+    private static final String STATE_FILE_NAME_FORMAT = "slot%d.sav";
+    private static final String WARM_FILE_PREFIX = "warm-";
+    private static final String WARM_FILE_SUFFIX = ".sav";
+    private static final String NO_LOGO_FILE_SUFFIX = ".nologo";
+
+    private static final int BOOT_MAX_FRAMES = 600;
+    private static final int BOOT_STABLE_FRAMES = 20;
+    private static final int BOOT_SCROLL_FRAMES = 16;
+    private static final int BOOT_SCROLL_MAX_ROWS = 2; // the logo moves a row every 15 ms
+
+    private static final int REWIND_INTERVAL_FRAMES = 2;
+    private static final int REWIND_KEY_INTERVAL = 60;
+
+    public static final int CAPTURE_FORMAT_GIF = 0;
+    public static final int CAPTURE_FORMAT_PNG = 1;
+
+    private static final int CAPTURE_QUEUE_FRAMES = 64;
+
+    private static final int REPLAY_FRAMES_PER_SECOND = 60;
+
     private static final String CAPTURE_DIR_NAME = "ArbyEmulator";
     private static final String CAPTURE_WORK_FILE_NAME = "temp.gif";
+    private static final String REPLAY_WORK_FILE_NAME = "replay.gif";
     private static final String CAPTURE_FILE_NAME_FORMAT = "yyyyMMddkkmmss'.gif'";
+    private static final String CAPTURE_PNG_FILE_NAME_FORMAT = "yyyyMMddkkmmss'.png'";
+    private static final String CAPTURE_RAW_FILE_NAME_FORMAT = "yyyyMMddkkmmss'.arby'";
     private static final File CAPTURE_DIR = new File(
             Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_PICTURES),
             CAPTURE_DIR_NAME);
     private static final File CAPTURE_WORK_FILE = new File(CAPTURE_DIR, CAPTURE_WORK_FILE_NAME);
+    private static final File REPLAY_WORK_FILE = new File(CAPTURE_DIR, REPLAY_WORK_FILE_NAME);
 
     private MyApplication       mApp;
     private EmulatorScreenView  mEmulatorView;
 
     private Thread      mEmulationThread;
     private boolean     mIsEmulationAvailable;
+    private long        mHandle = Native.NULL_HANDLE;
+    private String      mGameKey;
+    private final Object mNativeLock = new Object();
     private boolean     mIsEmulating;
     private boolean     mIsCharging;
     private boolean     mIsOneShot;
     private boolean     mIsCapturing;
+    private boolean     mIsCaptureRaw;
+    private int         mCaptureFormat = CAPTURE_FORMAT_GIF;
+    private int         mPngCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private boolean     mIsSavingReplay;
+    private boolean     mIsDirectRendering = true;
+    private boolean     mIsForceRefresh;
+    private boolean     mIsBusyLoopSkip = true;
+    private int         mInterpreter = INTERPRETER_SIMAVR;
+    private boolean     mIsBootSkip;
+    private boolean     mIsBootPending;
+    private boolean     mIsRewinding;
+    private int         mRewindMaxBytes;
     private int         mFps;
+    private int         mTurbo = TURBO_OFF;
+    private float       mAchievedFps;
     private byte[]      mEeprom;
+    private ByteBuffer  mCtrl;
+    private IntBuffer   mCtrlPixels;
+    private ByteBuffer  mCtrlBits;
     private GifEncoder  mGifEncoder;
+    private PngEncoder  mPngEncoder;
+    private CaptureRecorder mCaptureRecorder;
+    private ArbyWriter  mArbyWriter;
+    private FramePacer  mFramePacer;
+    private RewindBuffer mRewindBuffer;
+    private ReplayBuffer mReplayBuffer;
 
     /*-----------------------------------------------------------------------*/
     /*                              Emulation                                */
@@ -90,8 +159,19 @@ public class ArduboyEmulator {
 
     public ArduboyEmulator(MyApplication app) {
         mApp = app;
+        mCtrl = ByteBuffer.allocateDirect(Native.CTRL_SIZE).order(ByteOrder.nativeOrder());
+        mCtrl.position(Native.CTRL_PIXELS);
+        mCtrlPixels = mCtrl.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+        mCtrl.position(Native.CTRL_BITS);
+        mCtrl.limit(Native.CTRL_BITS + BITS_SIZE);
+        mCtrlBits = mCtrl.slice();
+        mCtrl.clear();
         loadEeprom();
         mGifEncoder = new GifEncoder();
+        mPngEncoder = new PngEncoder();
+        mCaptureRecorder = new CaptureRecorder(CAPTURE_QUEUE_FRAMES, BITS_SIZE);
+        mFramePacer = new FramePacer();
+        mRewindBuffer = new RewindBuffer(0, REWIND_KEY_INTERVAL);
     }
 
     public boolean isEmulating() {
@@ -102,16 +182,91 @@ public class ArduboyEmulator {
         mFps = fps;
     }
 
+    /**
+     * Sets the turbo multiplier; TURBO_OFF, 2, 4, 8 or TURBO_MAX (unthrottled).
+     * Only the last frame of each multiplier frames is presented and captured.
+     */
+    public void setTurbo(int turbo) {
+        mTurbo = Math.max(turbo, TURBO_MAX);
+    }
+
+    public int getTurbo() {
+        return mTurbo;
+    }
+
+    public float getAchievedFps() {
+        return (mIsEmulating) ? mAchievedFps : 0f;
+    }
+
+    public FramePacer getFramePacer() {
+        return mFramePacer;
+    }
+
+    public void setFramePacer(FramePacer framePacer) {
+        if (framePacer != null) {
+            mFramePacer = framePacer;
+        }
+    }
+
+    public synchronized void setRefreshTiming(boolean isPostpone) {
+        if (mIsEmulationAvailable) {
+            Native.setRefreshTiming(mHandle, isPostpone);
+        }
+    }
+
+    /**
+     * Enables or disables skipping of the boot logo. When enabled, the boot sequence is
+     * fast-forwarded at the first run after initialization, and the machine state after the
+     * logo is cached per game so that the next launch resumes there directly.
+     */
+    public void setBootSkip(boolean isBootSkip) {
+        mIsBootSkip = isBootSkip;
+    }
+
+    /**
+     * Enables or disables fast-forwarding of busy-wait loops such as polling millis().
+     */
+    public void setBusyLoopSkip(boolean isBusyLoopSkip) {
+        mIsBusyLoopSkip = isBusyLoopSkip;
+    }
+
+    /**
+     * Selects how the native core runs instructions; INTERPRETER_SIMAVR, INTERPRETER_PREDECODE
+     * (frequent instructions from a predecoded cache) or INTERPRETER_TRANSLATE (hot basic blocks
+     * as a whole in addition).
+     */
+    public void setInterpreter(int interpreter) {
+        mInterpreter = interpreter;
+    }
+
+    /**
+     * @return flags of Native.step() to run the program as the settings say.
+     */
+    private int getEngineFlags() {
+        int flags = (mIsBusyLoopSkip) ? Native.FLAG_SKIP_BUSY_LOOP : 0;
+        if (mInterpreter == INTERPRETER_PREDECODE) {
+            flags |= Native.FLAG_PREDECODE;
+        } else if (mInterpreter == INTERPRETER_TRANSLATE) {
+            flags |= Native.FLAG_TRANSLATE;
+        }
+        return flags;
+    }
+
+    public void setDirectRendering(boolean isDirectRendering) {
+        mIsDirectRendering = isDirectRendering;
+    }
+
     public synchronized void setCharging(boolean isCharging) {
         mIsCharging = isCharging;
         if (!mIsEmulating && mEmulatorView != null) {
             mEmulatorView.updateLed(Color.BLACK, false, false, mIsCharging);
-            mEmulatorView.postInvalidate();
+            mEmulatorView.requestRender();
         }
     }
 
     public synchronized void bindEmulatorView(EmulatorScreenView emulatorView) {
         mEmulatorView = emulatorView;
+        mIsForceRefresh = true;
         setCharging(mIsCharging);
     }
 
@@ -119,8 +274,19 @@ public class ArduboyEmulator {
         if (mIsEmulationAvailable) {
             finishEmulation();
         }
-        mIsEmulationAvailable = Native.setup(path, mApp.getEmulationTuning());
-        Native.setRefreshTiming(mApp.getEmulationPostRefresh());
+        mHandle = Native.setup(path, mApp.getEmulationTuning());
+        mIsEmulationAvailable = (mHandle != Native.NULL_HANDLE);
+        mGameKey = ArduboyUtils.getDigestString(new File(path));
+        mRewindBuffer.clear();
+        ReplayBuffer replayBuffer = mReplayBuffer;
+        if (replayBuffer != null) {
+            replayBuffer.clear();
+        }
+        mIsBootPending = true;
+        if (mIsEmulationAvailable) {
+            Native.setRefreshTiming(mHandle, mApp.getEmulationPostRefresh());
+            Native.setControlBlock(mHandle, mCtrl);
+        }
         return mIsEmulationAvailable;
     }
 
@@ -135,32 +301,136 @@ public class ArduboyEmulator {
         mEmulationThread = new Thread(new Runnable() {
             @Override
             public void run() {
+                long handle = mHandle;
                 int fps = mFps;
                 int[] pixels = new int[PIXELS_SIZE];
+                byte[] bits = new byte[BITS_SIZE];
                 int[] leds = new int[LEDS_SIZE];
-                long baseTime = System.currentTimeMillis();
-                long frames = 0;
+                int[] lastLeds = new int[LEDS_SIZE];
+                boolean lastCharging = false;
+                boolean isPixelsValid = false;
+                boolean isBitsValid = false;
+                boolean isPendingScreen = false;
+                boolean isPendingLed = false;
+                boolean isPendingReplay = false;
+                int turbo = mTurbo;
+                FramePacer framePacer = mFramePacer;
+                framePacer.reset(fps);
+                long measureTime = System.nanoTime();
+                int measureFrames = 0;
+                int rewindFrames = 0;
+                byte[] rewindState = null;
 
-                Native.setEeprom(mEeprom);
+                Native.setEeprom(handle, mEeprom);
+                if (mIsBootPending) {
+                    mIsBootPending = false;
+                    if (mIsBootSkip) {
+                        skipBootLogo(handle);
+                    }
+                }
                 while (mIsEmulating) {
+                    int buttons = 0;
                     if (mEmulatorView != null) {
                         boolean[] buttonState = mEmulatorView.updateButtonState();
                         for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
-                            Native.buttonEvent(buttonIdx, buttonState[buttonIdx]);
+                            if (buttonState[buttonIdx]) {
+                                buttons |= 1 << buttonIdx;
+                            }
                         }
                     }
-                    Native.loop(pixels);
-                    Native.getLedState(leds);
-                    if (mEmulatorView != null) {
-                        mEmulatorView.updateScreen(pixels);
+                    boolean isDirectRendering = mIsDirectRendering;
+                    boolean isOneShot = mIsOneShot;
+                    boolean isCapturing = mIsCapturing;
+                    ReplayBuffer replayBuffer = mReplayBuffer;
+                    boolean isPngShot = isOneShot && mCaptureFormat == CAPTURE_FORMAT_PNG;
+                    boolean isNeedPixels = !isDirectRendering || (isOneShot && !isPngShot);
+                    boolean isNeedBits = isCapturing || isPngShot;
+                    mCtrl.putInt(Native.CTRL_BUTTONS, buttons);
+                    int flags = getEngineFlags();
+                    if (isNeedPixels) {
+                        flags |= Native.FLAG_RENDER_PIXELS;
+                    }
+                    if (isNeedBits || replayBuffer != null) {
+                        flags |= Native.FLAG_RENDER_BITS;
+                    }
+                    mCtrl.putInt(Native.CTRL_FLAGS, flags);
+                    synchronized (mNativeLock) {
+                        if (mIsRewinding) {
+                            if (rewindState != null && mRewindBuffer.pop(rewindState)) {
+                                Native.loadState(handle, rewindState);
+                            }
+                            Native.step(handle, 0); // only to refresh the screen and LEDs
+                        } else {
+                            Native.step(handle, (turbo == TURBO_MAX) ? TURBO_MAX_FRAMES : turbo);
+                            rewindFrames += mCtrl.getInt(Native.CTRL_FRAMES);
+                            if (mRewindMaxBytes > 0 && rewindFrames >= REWIND_INTERVAL_FRAMES) {
+                                if (rewindState == null) {
+                                    rewindState = new byte[Native.getStateSize(handle)];
+                                }
+                                if (Native.saveState(handle, rewindState)) {
+                                    mRewindBuffer.push(rewindState);
+                                }
+                                rewindFrames = 0;
+                            }
+                        }
+                    }
+
+                    /*  Measure actual speed  */
+                    measureFrames += mCtrl.getInt(Native.CTRL_FRAMES);
+                    long currentTime = System.nanoTime();
+                    if (currentTime - measureTime >= ONE_SECOND_NS) {
+                        mAchievedFps = measureFrames * (float) ONE_SECOND_NS
+                                / (currentTime - measureTime);
+                        measureTime = currentTime;
+                        measureFrames = 0;
+                    }
+
+                    /*  Detect changes of screen and LEDs  */
+                    boolean isForceRefresh = mIsForceRefresh;
+                    mIsForceRefresh = false;
+                    boolean isScreenDirty = isForceRefresh || mCtrl.getInt(Native.CTRL_DIRTY) != 0;
+                    boolean isLedDirty = isForceRefresh || lastCharging != mIsCharging;
+                    for (int ledIdx = 0; ledIdx < LEDS_SIZE; ledIdx++) {
+                        leds[ledIdx] = mCtrl.getInt(Native.CTRL_LEDS + ledIdx * 4);
+                        if (leds[ledIdx] != lastLeds[ledIdx]) {
+                            lastLeds[ledIdx] = leds[ledIdx];
+                            isLedDirty = true;
+                        }
+                    }
+                    lastCharging = mIsCharging;
+                    if (isNeedPixels && (isScreenDirty || !isPixelsValid)) {
+                        mCtrlPixels.rewind();
+                        mCtrlPixels.get(pixels);
+                    }
+                    isPixelsValid = isNeedPixels;
+                    if (isNeedBits && (isScreenDirty || !isBitsValid)) {
+                        mCtrlBits.rewind();
+                        mCtrlBits.get(bits);
+                    }
+
+                    isPendingScreen |= isScreenDirty;
+                    isPendingLed |= isLedDirty;
+                    boolean isPresent = (turbo == TURBO_MAX) || framePacer.isPresentFrame();
+                    if (isPresent && mEmulatorView != null && (isPendingScreen || isPendingLed)) {
+                        if (isPendingScreen) {
+                            if (!isDirectRendering) {
+                                mEmulatorView.updateScreen(pixels);
+                            } else if (!mEmulatorView.updateScreen(handle)) {
+                                mIsDirectRendering = false; // fall back to int[] pixels
+                                mIsForceRefresh = true;
+                            }
+                        }
                         mEmulatorView.updateLed(
                                 Color.rgb(leds[LED_RED], leds[LED_GREEN], leds[LED_BLUE]),
-                                (leds[LED_RX] != 0), (leds[LED_TX] != 0), mIsCharging);
-                        mEmulatorView.postInvalidate();
+                                (leds[LED_RX] != 0), (leds[LED_TX] != 0), lastCharging);
+                        mEmulatorView.requestRender();
+                        isPendingScreen = false;
+                        isPendingLed = false;
                     }
-                    if (mIsOneShot) {
-                        final File file = generateCaptureFile();
-                        if (mGifEncoder.oneShot(file, pixels)) {
+                    if (isOneShot) {
+                        final File file = generateCaptureFile(getImageFileNameFormat());
+                        if ((isPngShot) ? mPngEncoder.oneShot(file, bits)
+                                : mGifEncoder.oneShot(file, pixels)) {
                             handler.post(new Runnable() {
                                 @Override
                                 public void run() {
@@ -170,28 +440,44 @@ public class ArduboyEmulator {
                         }
                         mIsOneShot = false;
                     }
-                    if (mIsCapturing) {
-                        mGifEncoder.addFrame(pixels);
-                    }
-                    if (++frames >= fps) {
-                        baseTime += ONE_SECOND;
-                        frames = 0;
-                    }
-                    long currentTime = System.currentTimeMillis();
-                    long targetTime = baseTime + frames * ONE_SECOND / fps;
-                    if (mFps == fps && currentTime < targetTime) {
+                    ArbyWriter arbyWriter = mArbyWriter;
+                    if (isCapturing && arbyWriter != null) {
+                        int frames = Math.max(mCtrl.getInt(Native.CTRL_FRAMES), 1);
                         try {
-                            Thread.sleep(targetTime - currentTime);
-                        } catch (InterruptedException e) {
-                            // do nothing
+                            arbyWriter.addFrame((isScreenDirty || !isBitsValid) ? bits : null,
+                                    leds, frames);
+                        } catch (IOException e) {
+                            e.printStackTrace();
                         }
-                    } else {
+                    } else if (isCapturing) {
+                        if (isScreenDirty || !isBitsValid) {
+                            mCaptureRecorder.addFrame(bits);
+                        } else if (!mCaptureRecorder.addRepeatedFrame()) {
+                            mCaptureRecorder.addFrame(bits);
+                        }
+                    }
+                    isBitsValid = isNeedBits;
+                    if (replayBuffer != null) {
+                        isPendingReplay |= isScreenDirty;
+                        int frames = mCtrl.getInt(Native.CTRL_FRAMES);
+                        if (frames > 0) {
+                            if (isPendingReplay || !replayBuffer.addRepeatedFrame(frames)) {
+                                mCtrlBits.rewind();
+                                replayBuffer.addFrame(mCtrlBits, frames);
+                            }
+                            isPendingReplay = false;
+                        }
+                    }
+                    if (mFps != fps || mTurbo != turbo || mFramePacer != framePacer) {
                         fps = mFps;
-                        baseTime = currentTime;
-                        frames = 0;
+                        turbo = mTurbo;
+                        framePacer = mFramePacer;
+                        framePacer.reset(fps);
+                    } else if (turbo != TURBO_MAX) {
+                        framePacer.waitNextFrame();
                     }
                 }
-                Native.getEeprom(mEeprom);
+                Native.getEeprom(handle, mEeprom);
                 saveEeprom();
             }
         });
@@ -218,7 +504,9 @@ public class ArduboyEmulator {
     public synchronized void finishEmulation() {
         if (mIsEmulationAvailable) {
             stopEmulation();
-            Native.teardown();
+            mRewindBuffer.clear();
+            Native.teardown(mHandle);
+            mHandle = Native.NULL_HANDLE;
             mIsEmulationAvailable = false;
         }
     }
@@ -243,7 +531,7 @@ public class ArduboyEmulator {
     public void clearEeprom() {
         defaultEeprom();
         if (mIsEmulating) {
-            Native.setEeprom(mEeprom);
+            Native.setEeprom(mHandle, mEeprom);
         } else {
             saveEeprom();
         }
@@ -254,7 +542,7 @@ public class ArduboyEmulator {
             boolean ret = inputEeprom(new FileInputStream(new File(path)), false);
             if (ret) {
                 if (mIsEmulating) {
-                    Native.setEeprom(mEeprom);
+                    Native.setEeprom(mHandle, mEeprom);
                 } else {
                     saveEeprom();
                 }
@@ -307,9 +595,17 @@ public class ArduboyEmulator {
         }
     }
 
-    private boolean outputEeprom(OutputStream out) throws IOException {
-        long length = Utils.transferBytes(new ByteArrayInputStream(mEeprom), out, EEPROM_CALLBACK);
-        return (length >= EEPROM_SIZE);
+    private boolean outputEeprom(FileOutputStream out) throws IOException {
+        FileChannel channel = out.getChannel();
+        ByteBuffer buffer = ByteBuffer.wrap(mEeprom, 0, EEPROM_SIZE); // one write, no copy
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } finally {
+            channel.close();
+        }
+        return !buffer.hasRemaining();
     }
 
     private void defaultEeprom() {
@@ -319,6 +615,311 @@ public class ArduboyEmulator {
         }
     }
 
+    /*-----------------------------------------------------------------------*/
+    /*                              Save States                              */
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Takes a snapshot of the whole machine. It can be called while emulating.
+     *
+     * @return the snapshot, or null if failed.
+     */
+    public byte[] saveState() {
+        synchronized (mNativeLock) {
+            if (!mIsEmulationAvailable) {
+                return null;
+            }
+            byte[] state = new byte[Native.getStateSize(mHandle)];
+            return Native.saveState(mHandle, state) ? state : null;
+        }
+    }
+
+    /**
+     * Restores a snapshot taken by saveState() for the same program.
+     */
+    public boolean loadState(byte[] state) {
+        synchronized (mNativeLock) {
+            if (!mIsEmulationAvailable || state == null || !Native.loadState(mHandle, state)) {
+                return false;
+            }
+            mRewindBuffer.clear();
+            mIsForceRefresh = true;
+            return true;
+        }
+    }
+
+    public boolean saveStateSlot(int slot) {
+        File file = getStateSlotFile(slot);
+        byte[] state = saveState();
+        return (file != null && state != null && writeStateFile(file, state));
+    }
+
+    public boolean loadStateSlot(int slot) {
+        File file = getStateSlotFile(slot);
+        return (file != null && loadState(readStateFile(file)));
+    }
+
+    /**
+     * @return last modified time of the slot, or 0 if the slot is empty.
+     */
+    public long getStateSlotTime(int slot) {
+        File file = getStateSlotFile(slot);
+        return (file != null && file.exists()) ? file.lastModified() : 0;
+    }
+
+    private File getStateSlotFile(int slot) {
+        File dir = getStateDir();
+        if (dir == null || slot < 0 || slot >= STATE_SLOTS) {
+            return null;
+        }
+        return new File(dir, String.format(STATE_FILE_NAME_FORMAT, slot + 1));
+    }
+
+    private File getStateDir() {
+        if (!mIsEmulationAvailable || mGameKey == null) {
+            return null;
+        }
+        return new File(new File(mApp.getFilesDir(), STATE_DIR_NAME), mGameKey);
+    }
+
+    private byte[] readStateFile(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            Utils.transferBytes(new FileInputStream(file), out, null);
+            return out.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private boolean writeStateFile(File file, byte[] state) {
+        file.getParentFile().mkdirs();
+        try {
+            OutputStream out = new FileOutputStream(file);
+            try {
+                out.write(state);
+            } finally {
+                out.close();
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+            return false;
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+    /*                              Boot Skip                                */
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Resumes from the cached warm-start state, or fast-forwards the boot logo and caches
+     * the state after it. If no boot logo is detected, the game starts over from the
+     * beginning and a marker is cached instead, so that it isn't fast-forwarded again.
+     * Called on the emulation thread before the first frame.
+     */
+    private void skipBootLogo(long handle) {
+        synchronized (mNativeLock) {
+            File file = getWarmStartFile(WARM_FILE_SUFFIX);
+            File noLogoFile = getWarmStartFile(NO_LOGO_FILE_SUFFIX);
+            if (noLogoFile != null && noLogoFile.exists()) {
+                return;
+            }
+            byte[] state = (file != null) ? readStateFile(file) : null;
+            if (state != null && Native.loadState(handle, state)) {
+                mIsForceRefresh = true;
+                return;
+            }
+            state = new byte[Native.getStateSize(handle)];
+            boolean isBootSaved = Native.saveState(handle, state);
+            if (!fastForwardBoot(handle)) {
+                if (isBootSaved && mIsEmulating && Native.loadState(handle, state)) {
+                    mIsForceRefresh = true;
+                    if (noLogoFile != null && writeStateFile(noLogoFile, new byte[0])) {
+                        deleteStaleWarmStartFiles(noLogoFile);
+                    }
+                }
+                return;
+            }
+            if (file != null && Native.saveState(handle, state) && writeStateFile(file, state)) {
+                deleteStaleWarmStartFiles(file);
+            }
+        }
+    }
+
+    /**
+     * Runs the emulation unthrottled until the boot logo of Arduboy2 library finishes;
+     * the logo scrolls down row by row, stays still for a while, and then the screen changes.
+     * A still splash screen of the game itself isn't taken for the logo.
+     *
+     * @return true if the end of the boot logo is detected.
+     */
+    private boolean fastForwardBoot(long handle) {
+        mCtrl.putInt(Native.CTRL_BUTTONS, 0);
+        mCtrl.putInt(Native.CTRL_FLAGS, getEngineFlags() | Native.FLAG_RENDER_BITS);
+        byte[] bits = new byte[BITS_SIZE];
+        byte[] lastBits = new byte[BITS_SIZE];
+        int scrollFrames = 0;
+        int stableFrames = 0;
+        for (int frame = 0; frame < BOOT_MAX_FRAMES && mIsEmulating; frame++) {
+            if (!Native.step(handle, 1)) {
+                return false;
+            }
+            mCtrlBits.rewind();
+            mCtrlBits.get(bits);
+            if (Arrays.equals(bits, lastBits)) {
+                stableFrames++;
+            } else if (scrollFrames >= BOOT_SCROLL_FRAMES && stableFrames >= BOOT_STABLE_FRAMES) {
+                mIsForceRefresh = true;
+                return true;
+            } else {
+                scrollFrames = (isScrolledDown(lastBits, bits)) ? scrollFrames + 1 : 0;
+                stableFrames = 0;
+            }
+            byte[] tmp = lastBits;
+            lastBits = bits;
+            bits = tmp;
+        }
+        mIsForceRefresh = true;
+        return false;
+    }
+
+    /**
+     * @return true if the screen is the last one moved down by a few rows.
+     */
+    private static boolean isScrolledDown(byte[] lastBits, byte[] bits) {
+        for (int rows = 1; rows <= BOOT_SCROLL_MAX_ROWS; rows++) {
+            int offset = rows * ROW_BYTES;
+            boolean isMatched = true;
+            for (int i = offset; i < BITS_SIZE && isMatched; i++) {
+                isMatched = (bits[i] == lastBits[i - offset]);
+            }
+            if (isMatched) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The warm-start state depends on the EEPROM contents too, because the boot sequence
+     * reads settings such as the audio flag from EEPROM.
+     */
+    private File getWarmStartFile(String suffix) {
+        File dir = getStateDir();
+        String eepromKey = ArduboyUtils.getDigestString(mEeprom);
+        if (dir == null || eepromKey == null) {
+            return null;
+        }
+        return new File(dir, WARM_FILE_PREFIX + eepromKey + suffix);
+    }
+
+    private void deleteStaleWarmStartFiles(File file) {
+        File[] files = file.getParentFile().listFiles();
+        for (int i = 0; files != null && i < files.length; i++) {
+            if (files[i].getName().startsWith(WARM_FILE_PREFIX) && !files[i].equals(file)) {
+                files[i].delete(); // stale one for other EEPROM contents
+            }
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+    /*                                Rewind                                 */
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Sets the memory budget of the rewind buffer. Rewinding is disabled if it is 0.
+     */
+    public void setRewindMemory(int maxBytes) {
+        mRewindMaxBytes = Math.max(maxBytes, 0);
+        mRewindBuffer.setMaxBytes(mRewindMaxBytes);
+        if (mRewindMaxBytes == 0) {
+            mRewindBuffer.clear();
+        }
+    }
+
+    public boolean isRewindEnabled() {
+        return (mRewindMaxBytes > 0);
+    }
+
+    /**
+     * Starts or stops rewinding. While rewinding, the emulation goes back in time
+     * instead of proceeding, until the recorded snapshots run out.
+     */
+    public void setRewinding(boolean isRewinding) {
+        mIsRewinding = isRewinding && isRewindEnabled();
+    }
+
+    public boolean isRewinding() {
+        return mIsRewinding;
+    }
+
+    /*-----------------------------------------------------------------------*/
+    /*                            Instant Replay                             */
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Sets the length of instant replay in seconds of the game, and allocates the buffer
+     * for it. Instant replay is disabled if it is 0.
+     */
+    public synchronized void setReplaySeconds(int seconds) {
+        int maxFrames = Math.max(seconds, 0) * REPLAY_FRAMES_PER_SECOND;
+        if (maxFrames == 0) {
+            mReplayBuffer = null;
+        } else if (mReplayBuffer == null || mReplayBuffer.getMaxFrames() != maxFrames) {
+            mReplayBuffer = new ReplayBuffer(maxFrames, BITS_SIZE);
+        }
+    }
+
+    public boolean isReplayEnabled() {
+        return (mReplayBuffer != null);
+    }
+
+    /**
+     * Saves the last frames kept for instant replay as an animated GIF. The emulation
+     * goes on while the copy is encoded in the background, and the file is notified later.
+     */
+    public synchronized boolean saveReplay() {
+        final ReplayBuffer replayBuffer = mReplayBuffer;
+        if (replayBuffer == null || replayBuffer.getFrameCount() == 0 || mIsSavingReplay) {
+            return false;
+        }
+        mIsSavingReplay = true;
+        final File file = generateCaptureFile(getImageFileNameFormat());
+        final MovieEncoder encoder = createMovieEncoder();
+        final int fps = mFps;
+        final Handler handler = new Handler();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int maxFrames = replayBuffer.getMaxFrames();
+                byte[] images = new byte[maxFrames * BITS_SIZE];
+                int[] durations = new int[maxFrames];
+                int count = replayBuffer.copyTo(images, durations);
+                final boolean isSucceeded = ReplayBuffer.encode(images, durations, count,
+                        BITS_SIZE, encoder, REPLAY_WORK_FILE, file, fps);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mIsSavingReplay = false;
+                        if (isSucceeded) {
+                            notifyCaptured(file, true);
+                        } else {
+                            Utils.showToast(mApp, R.string.messageCaptureFailed);
+                        }
+                    }
+                });
+            }
+        }).start();
+        Utils.showToast(mApp, R.string.messageReplaySaving);
+        return true;
+    }
+
     /*-----------------------------------------------------------------------*/
     /*                            Screen Capture                             */
     /*-----------------------------------------------------------------------*/
@@ -334,30 +935,101 @@ public class ArduboyEmulator {
         return mIsOneShot;
     }
 
+    /**
+     * Sets what to do when the capture encoder falls behind the emulation.
+     *
+     * @param policy one of CaptureRecorder.POLICY_*.
+     */
+    public void setCapturePolicy(int policy) {
+        mCaptureRecorder.setPolicy(policy);
+    }
+
+    /**
+     * Sets the format of screenshots and movies; CAPTURE_FORMAT_GIF, or CAPTURE_FORMAT_PNG
+     * for 1-bit PNG screenshots and APNG movies.
+     */
+    public synchronized void setCaptureFormat(int format) {
+        mCaptureFormat = format;
+    }
+
+    /**
+     * Sets the compression level of PNG from Deflater.BEST_SPEED to
+     * Deflater.BEST_COMPRESSION, or Deflater.DEFAULT_COMPRESSION.
+     */
+    public synchronized void setPngCompressionLevel(int level) {
+        mPngCompressionLevel = level;
+        mPngEncoder.setCompressionLevel(level);
+    }
+
+    /**
+     * Sets whether movies are recorded as raw movie files (.arby) instead of GIF.
+     */
+    public void setCaptureRaw(boolean isCaptureRaw) {
+        mIsCaptureRaw = isCaptureRaw;
+    }
+
     public synchronized boolean startCapturing() {
         if (!mIsEmulating || mIsCapturing) {
             return false;
         }
-        if (mGifEncoder.start(getCaptureWorkFile())) {
+        if (mIsCaptureRaw) {
+            try {
+                mArbyWriter = new ArbyWriter(generateCaptureFile(CAPTURE_RAW_FILE_NAME_FORMAT),
+                        mFps);
+                Utils.showToast(mApp, R.string.messageCaptureStart);
+                mIsCapturing = true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                Utils.showToast(mApp, R.string.messageCaptureFailed);
+            }
+            return mIsCapturing;
+        }
+        final Handler handler = new Handler();
+        CaptureRecorder.Callback callback = new CaptureRecorder.Callback() {
+            @Override
+            public void onFinished(final File file, final boolean isSucceeded) {
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (isSucceeded) {
+                            notifyCaptured(file, true);
+                        } else {
+                            Utils.showToast(mApp, R.string.messageCaptureFailed);
+                        }
+                    }
+                });
+            }
+        };
+        if (mCaptureRecorder.start(createMovieEncoder(), getCaptureWorkFile(), mFps, callback)) {
             Utils.showToast(mApp, R.string.messageCaptureStart);
             mIsCapturing = true;
         }
         return mIsCapturing;
     }
 
+    /**
+     * Stops capturing. The file is finalized in the background and notified later.
+     */
     public synchronized boolean stopCapturing() {
         if (!mIsEmulating || !mIsCapturing) {
             return false;
         }
         mIsCapturing = false;
-        File file = generateCaptureFile();
-        if (mGifEncoder.finish(file)) {
-            notifyCaptured(file, true);
-            return true;
-        } else {
-            Utils.showToast(mApp, R.string.messageCaptureFailed);
-            return false;
+        ArbyWriter arbyWriter = mArbyWriter;
+        if (arbyWriter != null) {
+            mArbyWriter = null;
+            File file = arbyWriter.getFile();
+            try {
+                arbyWriter.close();
+                notifyCaptured(file, true);
+                return true;
+            } catch (IOException e) {
+                e.printStackTrace();
+                Utils.showToast(mApp, R.string.messageCaptureFailed);
+                return false;
+            }
         }
+        return mCaptureRecorder.stop(generateCaptureFile(getImageFileNameFormat()));
     }
 
     private void ensureCaptureDir() {
@@ -372,10 +1044,26 @@ public class ArduboyEmulator {
 
     }
 
-    private File generateCaptureFile() {
+    private File generateCaptureFile(String format) {
         ensureCaptureDir();
-        return new File(CAPTURE_DIR, DateFormat.format(
-                CAPTURE_FILE_NAME_FORMAT, Calendar.getInstance()).toString());
+        return new File(CAPTURE_DIR, DateFormat.format(format, Calendar.getInstance()).toString());
+    }
+
+    private String getImageFileNameFormat() {
+        return (mCaptureFormat == CAPTURE_FORMAT_PNG)
+                ? CAPTURE_PNG_FILE_NAME_FORMAT : CAPTURE_FILE_NAME_FORMAT;
+    }
+
+    /**
+     * Creates a new encoder for movies, which is used on another thread.
+     */
+    private synchronized MovieEncoder createMovieEncoder() {
+        if (mCaptureFormat == CAPTURE_FORMAT_PNG) {
+            PngEncoder pngEncoder = new PngEncoder();
+            pngEncoder.setCompressionLevel(mPngCompressionLevel);
+            return pngEncoder;
+        }
+        return new GifEncoder();
     }
 
     private void notifyCaptured(File file, boolean isMovie) {
@@ -24,15 +24,20 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
 
+/*  This class must not depend on Android framework because HeadlessRunner uses it on a host.  */
 public class ArduboyUtils {
 
+    private static final int BUFFER_SIZE = 1024 * 64;
     private static final String UTF8 = "UTF-8";
+    private static final String DIGEST_ALGORITHM = "SHA-1";
     private static final String INFO_FILE_NAME = "info.json";
     private static final String JSON_KEY_BINARIES = "binaries";
     private static final String JSON_KEY_FILENAME = "filename";
@@ -44,7 +49,7 @@ public class ArduboyUtils {
                 return false;
             }
             ByteArrayOutputStream out = new ByteArrayOutputStream();
-            Utils.transferBytes(in, out, null);
+            transferBytes(in, out);
             JSONObject infoJson = new JSONObject(new String(out.toByteArray(), UTF8));
             JSONArray binariesJson = infoJson.getJSONArray(JSON_KEY_BINARIES);
             JSONObject binaryJson = (JSONObject) binariesJson.get(0);
@@ -53,7 +58,7 @@ public class ArduboyUtils {
             if (in == null) {
                 return false;
             }
-            Utils.transferBytes(in, new FileOutputStream(outFile), null);
+            transferBytes(in, new FileOutputStream(outFile));
             return true;
         } catch (Exception e) {
             e.printStackTrace();
@@ -61,6 +66,63 @@ public class ArduboyUtils {
         }
     }
 
+    /**
+     * Returns SHA-1 digest of the data as a hexadecimal string, or null on failure.
+     */
+    public static String getDigestString(byte[] data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            return toHexString(digest.digest(data));
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Returns SHA-1 digest of the file contents as a hexadecimal string, or null on failure.
+     */
+    public static String getDigestString(File file) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int readLength;
+                while ((readLength = in.read(buffer)) >= 0) {
+                    digest.update(buffer, 0, readLength);
+                }
+            } finally {
+                in.close();
+            }
+            return toHexString(digest.digest());
+        } catch (Exception e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static String toHexString(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+
+    private static void transferBytes(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int readLength;
+        try {
+            while ((readLength = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, readLength);
+            }
+        } finally {
+            out.close();
+            in.close();
+        }
+    }
+
     private static InputStream extractStreamFileFromZip(File zipFile, String fname) {
         ZipInputStream zin = null;
         try {
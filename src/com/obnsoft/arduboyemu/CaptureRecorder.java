@@ -0,0 +1,256 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.io.File;
+
+/**
+ * Records packed 1-bit frames into an animated GIF or APNG on a background thread.
+ * Frames are queued into a preallocated ring, and the policy decides what happens
+ * when the encoder falls behind and the ring is full.
+ */
+public class CaptureRecorder {
+
+    public static final int POLICY_BLOCK    = 0;    // wait for the encoder
+    public static final int POLICY_DROP     = 1;    // discard the new frame
+    public static final int POLICY_COALESCE = 2;    // replace the newest queued frame
+
+    public interface Callback {
+        /**
+         * Called on the encoder thread when the recording has been finalized.
+         */
+        void onFinished(File file, boolean isSucceeded);
+    }
+
+    private static class Slot {
+        byte[]  bits;
+        int     frames;     // number of frames this image lasts
+        boolean isRepeat;   // same image as the previous slot, bits are unused
+
+        Slot(int frameSize) {
+            bits = new byte[frameSize];
+        }
+    }
+
+    private Slot[]      mSlots;
+    private int         mHead;
+    private int         mCount;
+    private int         mFrameSize;
+    private int         mPolicy = POLICY_COALESCE;
+    private boolean     mIsRecording;
+    private boolean     mHasFrame;
+    private long        mDroppedFrames;
+    private File        mFinishFile;
+    private Thread      mEncoderThread;
+
+    /*-----------------------------------------------------------------------*/
+
+    public CaptureRecorder(int capacity, int frameSize) {
+        mSlots = new Slot[Math.max(capacity, 1)];
+        for (int i = 0; i < mSlots.length; i++) {
+            mSlots[i] = new Slot(frameSize);
+        }
+        mFrameSize = frameSize;
+    }
+
+    public synchronized void setPolicy(int policy) {
+        mPolicy = policy;
+        notifyAll();
+    }
+
+    public synchronized boolean isRecording() {
+        return mIsRecording;
+    }
+
+    public synchronized long getDroppedFrameCount() {
+        return mDroppedFrames;
+    }
+
+    /**
+     * Starts recording into the work file by the encoder. The previous recording is
+     * waited for if it is still being finalized.
+     *
+     * @param fps the number of frames per second in the emulation.
+     * @return false if the work file can't be created.
+     */
+    public boolean start(final MovieEncoder encoder, File workFile, int fps,
+            final Callback callback) {
+        waitFinished();
+        if (!encoder.start(workFile, fps)) {
+            return false;
+        }
+        synchronized (this) {
+            mHead = 0;
+            mCount = 0;
+            mHasFrame = false;
+            mDroppedFrames = 0;
+            mFinishFile = null;
+            mIsRecording = true;
+        }
+        mEncoderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encodeFrames(encoder, callback);
+            }
+        });
+        mEncoderThread.start();
+        return true;
+    }
+
+    /**
+     * Stops recording. The queued frames are encoded and the file is finalized in
+     * the background, then the callback is invoked.
+     */
+    public synchronized boolean stop(File file) {
+        if (!mIsRecording) {
+            return false;
+        }
+        mFinishFile = file;
+        mIsRecording = false;
+        notifyAll();
+        return true;
+    }
+
+    public void waitFinished() {
+        Thread thread = mEncoderThread;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            mEncoderThread = null;
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Queues a new image. Called from the emulation thread.
+     *
+     * @return false if not recording.
+     */
+    public synchronized boolean addFrame(byte[] bits) {
+        if (!mIsRecording || bits.length != mFrameSize) {
+            return false;
+        }
+        if (mCount == mSlots.length) {
+            if (mPolicy == POLICY_DROP) {
+                mDroppedFrames++;
+                return true;
+            }
+            if (mPolicy == POLICY_COALESCE) {
+                Slot slot = getTail();
+                System.arraycopy(bits, 0, slot.bits, 0, mFrameSize);
+                slot.frames++;
+                slot.isRepeat = false;
+                mDroppedFrames++;
+                return true;
+            }
+            while (mCount == mSlots.length && mIsRecording && mPolicy == POLICY_BLOCK) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            if (mCount == mSlots.length) {
+                return addFrame(bits); // the policy has been changed meanwhile
+            }
+        }
+        Slot slot = mSlots[(mHead + mCount) % mSlots.length];
+        System.arraycopy(bits, 0, slot.bits, 0, mFrameSize);
+        slot.frames = 1;
+        slot.isRepeat = false;
+        mCount++;
+        mHasFrame = true;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Extends the previous image by one frame without copying it. This never waits.
+     *
+     * @return false if not recording or no image has been queued yet.
+     */
+    public synchronized boolean addRepeatedFrame() {
+        if (!mIsRecording || !mHasFrame) {
+            return false;
+        }
+        if (mCount > 0) {
+            getTail().frames++;
+        } else {
+            Slot slot = mSlots[mHead];
+            slot.frames = 1;
+            slot.isRepeat = true;
+            mCount++;
+            notifyAll();
+        }
+        return true;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private Slot getTail() {
+        return mSlots[(mHead + mCount - 1) % mSlots.length];
+    }
+
+    private void encodeFrames(MovieEncoder encoder, Callback callback) {
+        byte[] bits = new byte[mFrameSize];
+        File file;
+        while (true) {
+            int frames;
+            boolean isRepeat;
+            synchronized (this) {
+                while (mCount == 0 && mIsRecording) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+                if (mCount == 0) {
+                    file = mFinishFile;
+                    break;
+                }
+                Slot slot = mSlots[mHead];
+                frames = slot.frames;
+                isRepeat = slot.isRepeat;
+                if (!isRepeat) {
+                    System.arraycopy(slot.bits, 0, bits, 0, mFrameSize);
+                }
+                mHead = (mHead + 1) % mSlots.length;
+                mCount--;
+                notifyAll();
+            }
+            if (!isRepeat) {
+                encoder.addPackedFrame(bits);
+                frames--;
+            }
+            while (frames-- > 0) {
+                encoder.addRepeatedFrame();
+            }
+        }
+        boolean isSucceeded = encoder.finish(file);
+        if (callback != null) {
+            callback.onFinished(file, isSucceeded);
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Output stream which collects small writes into a ByteBuffer and writes it to a
+ * FileChannel in large chunks. The buffer can be shared by successive streams.
+ */
+public class ChannelOutputStream extends OutputStream {
+
+    public static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private FileChannel mChannel;
+    private ByteBuffer  mBuffer;
+    private int         mWriteCount;
+    private long        mWrittenBytes;
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Creates a stream with its own buffer, which is allocated at the first small write.
+     */
+    public ChannelOutputStream(FileChannel channel) {
+        this(channel, null);
+    }
+
+    /**
+     * Creates a stream with the specified buffer. Its content is discarded.
+     */
+    public ChannelOutputStream(FileChannel channel, ByteBuffer buffer) {
+        mChannel = channel;
+        mBuffer = buffer;
+        if (buffer != null) {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * @return the number of write operations to the channel so far.
+     */
+    public int getWriteCount() {
+        return mWriteCount;
+    }
+
+    public long getWrittenBytes() {
+        return mWrittenBytes;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureBuffer();
+        if (!mBuffer.hasRemaining()) {
+            drain();
+        }
+        mBuffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (mBuffer != null && len <= mBuffer.remaining()) {
+            mBuffer.put(b, off, len);
+            return;
+        }
+        drain();
+        if (len >= DEFAULT_BUFFER_SIZE || (mBuffer != null && len >= mBuffer.capacity())) {
+            writeFully(ByteBuffer.wrap(b, off, len));
+        } else {
+            ensureBuffer();
+            mBuffer.put(b, off, len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mChannel == null) {
+            return;
+        }
+        try {
+            drain();
+        } finally {
+            mChannel.close();
+            mChannel = null;
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void ensureBuffer() {
+        if (mBuffer == null) {
+            mBuffer = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+        }
+    }
+
+    private void drain() throws IOException {
+        if (mBuffer != null && mBuffer.position() > 0) {
+            mBuffer.flip();
+            writeFully(mBuffer);
+            mBuffer.clear();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mWrittenBytes += mChannel.write(buffer);
+            mWriteCount++;
+        }
+    }
+
+}
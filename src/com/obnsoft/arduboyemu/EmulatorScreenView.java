@@ -18,23 +18,37 @@
 
 package com.obnsoft.arduboyemu;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Matrix;
 import android.graphics.Paint;
+import android.graphics.PixelFormat;
 import android.graphics.PointF;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.util.DisplayMetrics;
 import android.view.MotionEvent;
-import android.view.View;
-
-public class EmulatorScreenView extends View {
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+/**
+ * Presents the emulator on a surface from its own render thread, so that the UI thread
+ * never delays frames. The emulation thread publishes frames (the screen and the LEDs)
+ * through a triple buffer and requests rendering, and the render thread always draws the
+ * latest one. The layout is computed on the UI thread and handed over as an immutable object.
+ * Only the regions which have changed are redrawn over the skin cached at the display scale.
+ */
+public class EmulatorScreenView extends SurfaceView implements SurfaceHolder.Callback {
 
     private static final int SKIN_W = 230;
     private static final int SKIN_H = 368;
@@ -72,22 +86,64 @@ public class EmulatorScreenView extends View {
 
     private static final int TOUCH_STATE_MAX = 10;
 
-    private float       mBaseX, mBaseY, mScale;
+    private static final int DIRTY_SCREEN   = 1;
+    private static final int DIRTY_LED_RGB  = 2;
+    private static final int DIRTY_LED_UART = 4;
+    private static final int DIRTY_BUTTONS  = 8;
+    private static final int DIRTY_ALL      = 16;
+
+    private static final int CHECK_INTERVAL = 60; // partial redraws between checks in debug builds
+
+    /*  Flare of RGB LED by the brightest component  */
+    private static final int LED_LEVELS = 256;
+    private static final float[] LED_RGB_FLARE_SIZES = new float[LED_LEVELS];
+    private static final int[] LED_RGB_FLARE_GAINS = new int[LED_LEVELS]; // 16.16 fixed point
+    static {
+        for (int level = 1; level < LED_LEVELS; level++) {
+            float value = level / (float) (LED_LEVELS - 1);
+            LED_RGB_FLARE_SIZES[level] = LED_FLARE_SIZE * (float) Math.sqrt(value * 4f);
+            LED_RGB_FLARE_GAINS[level] = ((LED_LEVELS - 1) << 16) / level;
+        }
+    }
+
     private DrawObject  mSkin;
-    private DrawObject  mScreen;
+    private Paint       mScreenPaint;
     private DrawObject  mLedRgbFlare;
-    private DrawObject[] mLedUartFlare;
-    private boolean     mIsDrawButton;
+    private Paint       mLedUartPaint;
     private Paint       mButtonPaint;
+    private int         mBackgroundColor;
+
+    /*  Shared among threads  */
+    private volatile Layout mLayout;
+    private TripleBuffer<Frame> mFrames;
+    private volatile int mPressedButtons; // bits of buttons to draw as pressed
+    private AtomicInteger mDirtyRegions = new AtomicInteger();
+    private volatile Thread mRenderThread;
+    private volatile boolean mIsRendering;
+
+    /*  UI thread and emulation thread, guarded by mTouchPoints  */
+    private PointF[]    mTouchPoints = new PointF[TOUCH_STATE_MAX];
+    private int         mTouchPointCount;
 
+    /*  Producers of frames, guarded by mProducerLock  */
+    private final Object mProducerLock = new Object();
+    private Frame       mLastFrame; // the latest published frame
     private int         mLedRgbColor = Color.BLACK;
-    private float[]     mLedRgbWorkHSV = new float[3];
     private boolean[]   mLedUartOn = new boolean[LED_UART_ID_MAX];
+    private int         mPendingRegions;
+    private int[]       mCopyPixels;
+
+    /*  Emulation thread  */
     private boolean[]   mButtonState = new boolean[Native.BUTTON_MAX];
-    private PointF[]    mButtonPosition = new PointF[Native.BUTTON_MAX];
-    private float       mButtonSize;
-    private PointF[]    mTouchPoint = new PointF[TOUCH_STATE_MAX];
-    private int         mTouchPointCount;
+
+    /*  Render thread, or whoever draws, guarded by mDrawLock  */
+    private final Object mDrawLock = new Object();
+    private Layout      mDrawnLayout; // the layout which was used for the last frame
+    private int         mLedRgbFlareRgb = Color.BLACK; // LED color which mLedRgbFlare is set for
+    private Rect        mDirtyRect = new Rect();
+    private Bitmap      mCheckPartial; // what the surface should show, in debug builds
+    private Bitmap      mCheckFull;
+    private int         mCheckCount;
 
     /*-----------------------------------------------------------------------*/
 
@@ -110,30 +166,152 @@ public class EmulatorScreenView extends View {
             }
         }
 
-        public DrawObject(Bitmap bitmap, Matrix matrix, Paint paint) {
-            this.bitmap = bitmap;
-            this.matrix = (matrix == null) ? new Matrix() : matrix;
-            this.paint  = (paint  == null) ? new Paint()  : paint;
+        public synchronized void draw(Canvas canvas, Matrix matrix) {
+            if (!bitmap.isRecycled()) {
+                canvas.drawBitmap(bitmap, matrix, paint);
+            }
         }
 
-        public void setCoords(float x, float y, float w, float h) {
-            matrix.setScale(mScale * w / bitmap.getWidth(), mScale * h / bitmap.getHeight());
-            matrix.postTranslate(mBaseX + x * mScale, mBaseY + y * mScale);
+        public synchronized void recycle() {
+            bitmap.recycle();
         }
+    }
 
-        public void setCoordsCenter(float x, float y, float w, float h) {
-            setCoords(x - w / 2f, y - h / 2f, w, h);
-        }
+    /**
+     * Geometry of the view for a size. It isn't modified once it has been made.
+     */
+    class Layout {
+
+        public final int    width, height;
+        public final float  baseX, baseY, scale;
+        public final Bitmap skinLayer; // mSkin drawn over the background at the display scale
+        public final int    skinLayerX, skinLayerY;
+        public final Matrix skinMatrix;
+        public final Matrix screenMatrix;
+        public final Matrix[] ledUartMatrices = new Matrix[LED_UART_ID_MAX];
+        public final Rect   screenRect, ledRgbRect, ledUartRect, buttonRect;
+        public final PointF[] buttonPositions = new PointF[Native.BUTTON_MAX];
+        public final float  buttonSize;
+        public final boolean isDrawButton;
+
+        public Layout(int w, int h) {
+            width = w;
+            height = h;
+
+            /*  Skin position  */
+            boolean isLandscape = (w > h);
+            int tmpH = isLandscape ? SCREEN_Y * 2 + SCREEN_H : SKIN_H;
+            scale = Math.max(Math.min(w / SKIN_W, h / tmpH), 1);
+            baseX = (int) ((w - SKIN_W * scale) / 2f); // align the screen to device pixels
+            baseY = (int) ((h - tmpH * scale) / 2f);
+            skinMatrix = getMatrix(mSkin.bitmap, 0, 0, SKIN_W, SKIN_H);
+            screenMatrix = getMatrix(SCREEN_W, SCREEN_H, SCREEN_X, SCREEN_Y, SCREEN_W, SCREEN_H);
+            for (int i = 0; i < LED_UART_ID_MAX; i++) {
+                ledUartMatrices[i] = getMatrixCenter(mLedRgbFlare.bitmap,
+                        LED_UART_X + LED_UART_GX * i, LED_UART_Y, LED_FLARE_SIZE, LED_FLARE_SIZE);
+            }
 
-        public synchronized void draw(Canvas canvas) {
-            if (!bitmap.isRecycled()) {
-                canvas.drawBitmap(bitmap, matrix, paint);
+            /*  Skin layer, which is clipped to the view to save memory  */
+            skinLayerX = (int) Math.max(baseX, 0);
+            skinLayerY = (int) Math.max(baseY, 0);
+            int layerW = (int) Math.min(baseX + SKIN_W * scale, w) - skinLayerX;
+            int layerH = (int) Math.min(baseY + SKIN_H * scale, h) - skinLayerY;
+            if (layerW > 0 && layerH > 0) {
+                skinLayer = Bitmap.createBitmap(layerW, layerH, Bitmap.Config.ARGB_8888);
+                Canvas canvas = new Canvas(skinLayer);
+                canvas.drawColor(mBackgroundColor);
+                canvas.translate(-skinLayerX, -skinLayerY);
+                mSkin.draw(canvas, skinMatrix);
+            } else {
+                skinLayer = null;
+            }
+
+            /*  Regions to redraw  */
+            screenRect = getRegion(SCREEN_X, SCREEN_Y, SCREEN_W, SCREEN_H);
+            float maxFlareSize = LED_RGB_FLARE_SIZES[LED_LEVELS - 1];
+            ledRgbRect = getRegion(LED_RGB_X - maxFlareSize / 2f, LED_RGB_Y - maxFlareSize / 2f,
+                    maxFlareSize, maxFlareSize);
+            ledUartRect = getRegion(LED_UART_X - LED_FLARE_SIZE / 2f,
+                    LED_UART_Y - LED_FLARE_SIZE / 2f,
+                    LED_UART_GX * (LED_UART_ID_MAX - 1) + LED_FLARE_SIZE, LED_FLARE_SIZE);
+
+            /*  Buttons position  */
+            float buttonScale = scale;
+            if (isLandscape) {
+                DisplayMetrics displayMetrics = getContext().getResources().getDisplayMetrics();
+                buttonScale = displayMetrics.density * 2f;
+            }
+            float dpadX, dpadY, abX, abY;
+            float dpadGap = BUTTON_DPAD_G * buttonScale;
+            float abGapX = BUTTON_AB_GX * buttonScale;
+            float abGapY = BUTTON_AB_GY * buttonScale;
+            buttonSize = BUTTON_SIZE * buttonScale;
+            if (isLandscape) {
+                dpadX = (BUTTON_SIZE + BUTTON_DPAD_G) * buttonScale;
+                dpadY = h - dpadX;
+                abX = w - (BUTTON_SIZE + BUTTON_AB_GX) * buttonScale;
+                abY = h - (BUTTON_SIZE + BUTTON_AB_GY) * buttonScale;
+                isDrawButton = true;
+            } else {
+                dpadX = baseX + BUTTON_DPAD_X * buttonScale;
+                dpadY = baseY + BUTTON_DPAD_Y * buttonScale;
+                abX = baseX + BUTTON_AB_X * buttonScale;
+                abY = baseY + BUTTON_AB_Y * buttonScale;
+                isDrawButton = false;
+            }
+            buttonPositions[Native.BUTTON_UP   ] = new PointF(dpadX, dpadY - dpadGap);
+            buttonPositions[Native.BUTTON_DOWN ] = new PointF(dpadX, dpadY + dpadGap);
+            buttonPositions[Native.BUTTON_LEFT ] = new PointF(dpadX - dpadGap, dpadY);
+            buttonPositions[Native.BUTTON_RIGHT] = new PointF(dpadX + dpadGap, dpadY);
+            buttonPositions[Native.BUTTON_A    ] = new PointF(abX - abGapX, abY + abGapY);
+            buttonPositions[Native.BUTTON_B    ] = new PointF(abX + abGapX, abY - abGapY);
+            buttonRect = new Rect();
+            for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
+                PointF position = buttonPositions[buttonIdx];
+                buttonRect.union((int) (position.x - buttonSize) - 1,
+                        (int) (position.y - buttonSize) - 1,
+                        (int) (position.x + buttonSize) + 2, (int) (position.y + buttonSize) + 2);
             }
         }
 
-        public synchronized void recycle() {
-            bitmap.recycle();
+        /**
+         * Gets the matrix which draws the bitmap at the rectangle of skin coordinates.
+         */
+        public Matrix getMatrix(Bitmap bitmap, float x, float y, float w, float h) {
+            return getMatrix(bitmap.getWidth(), bitmap.getHeight(), x, y, w, h);
         }
+
+        public Matrix getMatrixCenter(Bitmap bitmap, float x, float y, float w, float h) {
+            return getMatrix(bitmap, x - w / 2f, y - h / 2f, w, h);
+        }
+
+        private Matrix getMatrix(int bitmapW, int bitmapH, float x, float y, float w, float h) {
+            Matrix matrix = new Matrix();
+            matrix.setScale(scale * w / bitmapW, scale * h / bitmapH);
+            matrix.postTranslate(baseX + x * scale, baseY + y * scale);
+            return matrix;
+        }
+
+        /**
+         * Gets the rectangle of view coordinates which covers the region of skin coordinates.
+         */
+        private Rect getRegion(float x, float y, float w, float h) {
+            return new Rect((int) Math.floor(baseX + x * scale), (int) Math.floor(baseY + y * scale),
+                    (int) Math.ceil(baseX + (x + w) * scale),
+                    (int) Math.ceil(baseY + (y + h) * scale));
+        }
+    }
+
+    /**
+     * What the emulation thread hands to the render thread at once.
+     */
+    static class Frame {
+
+        public final Bitmap bitmap = Bitmap.createBitmap(SCREEN_W, SCREEN_H,
+                Bitmap.Config.ARGB_8888);
+        public int      ledRgb = Color.BLACK;
+        public final boolean[] ledUartOn = new boolean[LED_UART_ID_MAX];
+        public boolean  isScreenSet; // the screen has been rendered since this became the back
     }
 
     /*-----------------------------------------------------------------------*/
@@ -149,23 +327,23 @@ public class EmulatorScreenView extends View {
     public EmulatorScreenView(Context context, AttributeSet attrs, int defStyle) {
         super(context, attrs, defStyle);
         setFocusable(false);
+        getHolder().setFormat(PixelFormat.RGBA_8888);
+        getHolder().addCallback(this);
+        TypedArray a = context.getTheme().obtainStyledAttributes(
+                new int[] { android.R.attr.colorBackground });
+        mBackgroundColor = a.getColor(0, Color.WHITE);
+        a.recycle();
 
         mSkin = new DrawObject(R.drawable.skin, false);
-        mScreen = new DrawObject(Bitmap.createBitmap(SCREEN_W, SCREEN_H, Bitmap.Config.ARGB_8888),
-                null, new Paint(0)); // No ANTI_ALIAS_FLAG, No FILTER_BITMAP_FLAG
+        mFrames = new TripleBuffer<Frame>(new Frame(), new Frame(), new Frame());
+        mScreenPaint = new Paint(0); // No ANTI_ALIAS_FLAG, No FILTER_BITMAP_FLAG
         mLedRgbFlare = new DrawObject(R.drawable.flare, true);
-        mLedUartFlare = new DrawObject[LED_UART_ID_MAX];
-        for (int i = 0; i < LED_UART_ID_MAX; i++) {
-            mLedUartFlare[i] = new DrawObject(mLedRgbFlare.bitmap, null, mLedRgbFlare.paint);
-        }
+        mLedUartPaint = new Paint(mLedRgbFlare.paint);
         mButtonPaint = new Paint();
         mButtonPaint.setStyle(Paint.Style.FILL);
 
-        for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
-            mButtonPosition[buttonIdx] = new PointF();
-        }
         for (int touchIdx = 0; touchIdx < TOUCH_STATE_MAX; touchIdx++) {
-            mTouchPoint[touchIdx] = new PointF();
+            mTouchPoints[touchIdx] = new PointF();
         }
     }
 
@@ -173,10 +351,12 @@ public class EmulatorScreenView extends View {
     @SuppressLint("ClickableViewAccessibility")
     public boolean onTouchEvent(MotionEvent event) {
         int action = event.getActionMasked();
-        mTouchPointCount = (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL)
-                ? 0 : event.getPointerCount();
-        for (int touchIdx = 0; touchIdx < mTouchPointCount; touchIdx++) {
-            mTouchPoint[touchIdx].set(event.getX(touchIdx), event.getY(touchIdx));
+        synchronized (mTouchPoints) {
+            mTouchPointCount = (action == MotionEvent.ACTION_UP
+                    || action == MotionEvent.ACTION_CANCEL) ? 0 : event.getPointerCount();
+            for (int touchIdx = 0; touchIdx < mTouchPointCount; touchIdx++) {
+                mTouchPoints[touchIdx].set(event.getX(touchIdx), event.getY(touchIdx));
+            }
         }
         return true;
     }
@@ -184,124 +364,413 @@ public class EmulatorScreenView extends View {
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
-
-        /*  Skin position  */
-        boolean isLandscape = (w > h);
-        int tmpH = isLandscape ? SCREEN_Y * 2 + SCREEN_H : SKIN_H;
-        mScale = Math.max(Math.min(w / SKIN_W, h / tmpH), 1);
-        mBaseX = (w - SKIN_W * mScale) / 2f;
-        mBaseY = (h - tmpH * mScale) / 2f;
-        mSkin.setCoords(0, 0, SKIN_W, SKIN_H);
-        mScreen.setCoords(SCREEN_X, SCREEN_Y, SCREEN_W, SCREEN_H);
-        for (int i = 0; i < LED_UART_ID_MAX; i++) {
-            mLedUartFlare[i].setCoordsCenter(LED_UART_X + LED_UART_GX * i, LED_UART_Y,
-                    LED_FLARE_SIZE, LED_FLARE_SIZE);
-        }
-
-        /*  Buttons position  */
-        float buttonScale = mScale;
-        if (isLandscape) {
-            DisplayMetrics displayMetrics = getContext().getResources().getDisplayMetrics();
-            buttonScale = displayMetrics.density * 2f;
-        }
-        float dpadX, dpadY, abX, abY;
-        float dpadGap = BUTTON_DPAD_G * buttonScale;
-        float abGapX = BUTTON_AB_GX * buttonScale;
-        float abGapY = BUTTON_AB_GY * buttonScale;
-        mButtonSize = BUTTON_SIZE * buttonScale;
-        if (isLandscape) {
-            dpadX = (BUTTON_SIZE + BUTTON_DPAD_G) * buttonScale;
-            dpadY = h - dpadX;
-            abX = w - (BUTTON_SIZE + BUTTON_AB_GX) * buttonScale;
-            abY = h - (BUTTON_SIZE + BUTTON_AB_GY) * buttonScale;
-            mIsDrawButton = true;
-        } else {
-            dpadX = mBaseX + BUTTON_DPAD_X * buttonScale;
-            dpadY = mBaseY + BUTTON_DPAD_Y * buttonScale;
-            abX = mBaseX + BUTTON_AB_X * buttonScale;
-            abY = mBaseY + BUTTON_AB_Y * buttonScale;
-            mIsDrawButton = false;
-        }
-        mButtonPosition[Native.BUTTON_UP   ].set(dpadX, dpadY - dpadGap);
-        mButtonPosition[Native.BUTTON_DOWN ].set(dpadX, dpadY + dpadGap);
-        mButtonPosition[Native.BUTTON_LEFT ].set(dpadX - dpadGap, dpadY);
-        mButtonPosition[Native.BUTTON_RIGHT].set(dpadX + dpadGap, dpadY);
-        mButtonPosition[Native.BUTTON_A    ].set(abX - abGapX, abY + abGapY);
-        mButtonPosition[Native.BUTTON_B    ].set(abX + abGapX, abY - abGapY);
+        mLayout = new Layout(w, h); // the render thread recycles the previous one
+        markDirty(DIRTY_ALL);
+        wakeRenderThread();
     }
 
     @Override
-    protected void onDraw(Canvas canvas) {
-        super.onDraw(canvas);
-
-        /*  Arduboy  */
-        mSkin.draw(canvas);
-        mScreen.draw(canvas);
+    public void surfaceCreated(SurfaceHolder holder) {
+        final SurfaceHolder surfaceHolder = holder;
+        mIsRendering = true;
+        mDirtyRegions.set(DIRTY_ALL);
+        mRenderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                renderFrames(surfaceHolder);
+            }
+        });
+        mRenderThread.start();
+    }
 
-        /*  Flare of RGB LED  */
-        if (mLedRgbColor != Color.BLACK) {
-            Color.colorToHSV(mLedRgbColor, mLedRgbWorkHSV);
-            float flareSize = LED_FLARE_SIZE * (float) Math.sqrt(mLedRgbWorkHSV[2] * 4f);
-            mLedRgbWorkHSV[2] = 1f;
-            mLedRgbFlare.paint.setColor(Color.HSVToColor(mLedRgbWorkHSV));
-            mLedRgbFlare.setCoordsCenter(LED_RGB_X, LED_RGB_Y, flareSize, flareSize);
-            mLedRgbFlare.draw(canvas);
-        }
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        markDirty(DIRTY_ALL);
+        wakeRenderThread();
+    }
 
-        /*  Flares of UART LEDs  */
-        for (int i = 0; i < LED_UART_ID_MAX; i++) {
-            if (mLedUartOn[i]) {
-                mLedUartFlare[i].paint.setColor(LED_UART_FLARE_COLORS[i]);
-                mLedUartFlare[i].draw(canvas);
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        Thread thread = mRenderThread;
+        if (thread != null) {
+            mIsRendering = false;
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
             }
+            mRenderThread = null;
         }
+    }
 
-        /*  Buttons  */
-        if (mIsDrawButton) {
-            for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
-                mButtonPaint.setColor(mButtonState[buttonIdx] ? BUTTON_COLOR_ON : BUTTON_COLOR_OFF);
-                canvas.drawCircle(mButtonPosition[buttonIdx].x, mButtonPosition[buttonIdx].y,
-                        mButtonSize, mButtonPaint);
+    /**
+     * Draws the whole view with the latest frame. This works on any canvas, such as
+     * one of a Bitmap without hardware acceleration, and only the clip is touched.
+     */
+    public void drawFrame(Canvas canvas) {
+        synchronized (mDrawLock) {
+            Layout layout = mLayout;
+            if (layout != null) {
+                takeLayout(layout);
+                drawFrame(canvas, layout, mFrames.acquire());
             }
         }
     }
 
     /*-----------------------------------------------------------------------*/
 
+    /**
+     * Gets which buttons are touched. Called from the emulation thread.
+     */
     public boolean[] updateButtonState() {
-        for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
-            mButtonState[buttonIdx] = false;
+        Layout layout = mLayout;
+        if (layout == null) {
+            return mButtonState;
         }
-        float threshold = mButtonSize * 1.25f;
-        for (int touchIdx = 0; touchIdx < mTouchPointCount; touchIdx++) {
+        int pressedButtons = 0;
+        float threshold = layout.buttonSize * 1.25f;
+        synchronized (mTouchPoints) {
             for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
-                if (PointF.length(mTouchPoint[touchIdx].x - mButtonPosition[buttonIdx].x,
-                        mTouchPoint[touchIdx].y - mButtonPosition[buttonIdx].y) <= threshold) {
-                    mButtonState[buttonIdx] = true;
+                PointF position = layout.buttonPositions[buttonIdx];
+                boolean isPressed = false;
+                for (int touchIdx = 0; touchIdx < mTouchPointCount; touchIdx++) {
+                    if (PointF.length(mTouchPoints[touchIdx].x - position.x,
+                            mTouchPoints[touchIdx].y - position.y) <= threshold) {
+                        isPressed = true;
+                    }
+                }
+                mButtonState[buttonIdx] = isPressed;
+                if (isPressed) {
+                    pressedButtons |= 1 << buttonIdx;
                 }
             }
         }
+        if (pressedButtons != mPressedButtons) {
+            mPressedButtons = pressedButtons;
+            if (layout.isDrawButton) {
+                markDirty(DIRTY_BUTTONS);
+            }
+        }
         return mButtonState;
     }
 
+    /**
+     * Renders the screen into the back frame. Called from the emulation thread.
+     *
+     * @return false if the bitmap can't be rendered directly.
+     */
+    public boolean updateScreen(long handle) {
+        synchronized (mProducerLock) {
+            Frame frame = mFrames.getBackBuffer();
+            synchronized (frame.bitmap) {
+                if (frame.bitmap.isRecycled()) {
+                    return true;
+                }
+                if (!Native.renderBitmap(handle, frame.bitmap)) {
+                    return false;
+                }
+            }
+            frame.isScreenSet = true;
+            mPendingRegions |= DIRTY_SCREEN;
+        }
+        return true;
+    }
+
     public void updateScreen(int[] pixels) {
-        synchronized (mScreen) {
-            if (!mScreen.bitmap.isRecycled()) {
-                mScreen.bitmap.setPixels(pixels, 0, SCREEN_W, 0, 0, SCREEN_W, SCREEN_H);
+        synchronized (mProducerLock) {
+            Frame frame = mFrames.getBackBuffer();
+            synchronized (frame.bitmap) {
+                if (frame.bitmap.isRecycled()) {
+                    return;
+                }
+                frame.bitmap.setPixels(pixels, 0, SCREEN_W, 0, 0, SCREEN_W, SCREEN_H);
             }
+            frame.isScreenSet = true;
+            mPendingRegions |= DIRTY_SCREEN;
         }
     }
 
+    /**
+     * Sets the LEDs of the back frame.
+     */
     public void updateLed(int rgb, boolean isRxOn, boolean isTxOn, boolean isCharging) {
-        mLedRgbColor = rgb;
-        mLedUartOn[LED_UART_ID_RX] = isRxOn;
-        mLedUartOn[LED_UART_ID_TX] = isTxOn;
-        mLedUartOn[LED_UART_ID_CHARGE] = isCharging;
+        synchronized (mProducerLock) {
+            if (mLedRgbColor != rgb) {
+                mLedRgbColor = rgb;
+                mPendingRegions |= DIRTY_LED_RGB;
+            }
+            if (mLedUartOn[LED_UART_ID_RX] != isRxOn || mLedUartOn[LED_UART_ID_TX] != isTxOn
+                    || mLedUartOn[LED_UART_ID_CHARGE] != isCharging) {
+                mLedUartOn[LED_UART_ID_RX] = isRxOn;
+                mLedUartOn[LED_UART_ID_TX] = isTxOn;
+                mLedUartOn[LED_UART_ID_CHARGE] = isCharging;
+                mPendingRegions |= DIRTY_LED_UART;
+            }
+        }
+    }
+
+    /**
+     * Publishes the back frame if it has been updated, and wakes the render thread up
+     * to present the changed regions. This never waits for the render thread.
+     */
+    public void requestRender() {
+        synchronized (mProducerLock) {
+            if (mPendingRegions != 0) {
+                publishFrame();
+            }
+        }
+        wakeRenderThread();
     }
 
     public void onDestroy() {
+        synchronized (mDrawLock) {
+            Layout layout = mLayout;
+            if (layout != null && layout.skinLayer != null) {
+                layout.skinLayer.recycle();
+            }
+            if (mDrawnLayout != null && mDrawnLayout.skinLayer != null) {
+                mDrawnLayout.skinLayer.recycle();
+            }
+            if (mCheckPartial != null) {
+                mCheckPartial.recycle();
+                mCheckFull.recycle();
+                mCheckPartial = null;
+                mCheckFull = null;
+            }
+        }
         mSkin.recycle();
-        mScreen.recycle();
+        for (int i = 0; i < 3; i++) {
+            Bitmap bitmap = mFrames.getBuffer(i).bitmap;
+            synchronized (bitmap) {
+                bitmap.recycle();
+            }
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Completes the back frame and publishes it. A frame whose screen hasn't been rendered
+     * gets a copy of the latest one, so that it's always whole. Called with mProducerLock.
+     */
+    private void publishFrame() {
+        Frame frame = mFrames.getBackBuffer();
+        if (!frame.isScreenSet && mLastFrame != null) {
+            if (mCopyPixels == null) {
+                mCopyPixels = new int[SCREEN_W * SCREEN_H];
+            }
+            synchronized (mLastFrame.bitmap) {
+                if (!mLastFrame.bitmap.isRecycled()) {
+                    mLastFrame.bitmap.getPixels(mCopyPixels, 0, SCREEN_W, 0, 0, SCREEN_W, SCREEN_H);
+                }
+            }
+            synchronized (frame.bitmap) {
+                if (!frame.bitmap.isRecycled()) {
+                    frame.bitmap.setPixels(mCopyPixels, 0, SCREEN_W, 0, 0, SCREEN_W, SCREEN_H);
+                }
+            }
+        }
+        frame.ledRgb = mLedRgbColor;
+        System.arraycopy(mLedUartOn, 0, frame.ledUartOn, 0, LED_UART_ID_MAX);
+        mFrames.publish();
+        mLastFrame = frame;
+        mFrames.getBackBuffer().isScreenSet = false;
+        markDirty(mPendingRegions); // after publish(), so that the render thread sees the frame
+        mPendingRegions = 0;
+    }
+
+    private void wakeRenderThread() {
+        Thread thread = mRenderThread;
+        if (thread != null && mDirtyRegions.get() != 0) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void markDirty(int regions) {
+        if (regions == 0) {
+            return;
+        }
+        int state;
+        do {
+            state = mDirtyRegions.get();
+        } while ((state & regions) != regions
+                && !mDirtyRegions.compareAndSet(state, state | regions));
+    }
+
+    /**
+     * Starts drawing with the layout, and recycles the skin layer of the previous one if it
+     * has been replaced. A layout is never drawn again once a newer one has been taken,
+     * because mLayout is read with mDrawLock. Called with mDrawLock.
+     */
+    private void takeLayout(Layout layout) {
+        if (layout != mDrawnLayout) {
+            if (mDrawnLayout != null && mDrawnLayout.skinLayer != null) {
+                mDrawnLayout.skinLayer.recycle();
+            }
+            mDrawnLayout = layout;
+            mLedRgbFlareRgb = Color.BLACK;
+        }
+    }
+
+    /**
+     * @return false if the whole view needs to be redrawn.
+     */
+    private static boolean getDirtyRect(Layout layout, int regions, Rect rect) {
+        if ((regions & DIRTY_ALL) != 0) {
+            return false;
+        }
+        rect.setEmpty();
+        if ((regions & DIRTY_SCREEN) != 0) {
+            rect.union(layout.screenRect);
+        }
+        if ((regions & DIRTY_LED_RGB) != 0) {
+            rect.union(layout.ledRgbRect);
+        }
+        if ((regions & DIRTY_LED_UART) != 0) {
+            rect.union(layout.ledUartRect);
+        }
+        if ((regions & DIRTY_BUTTONS) != 0 && layout.isDrawButton) {
+            rect.union(layout.buttonRect);
+        }
+        return true;
+    }
+
+    private void renderFrames(SurfaceHolder holder) {
+        while (mIsRendering) {
+            int regions = mDirtyRegions.getAndSet(0);
+            if (regions == 0) {
+                LockSupport.park(this);
+                continue;
+            }
+            synchronized (mDrawLock) {
+                Layout layout = mLayout;
+                if (layout == null) {
+                    continue;
+                }
+                if (layout != mDrawnLayout) {
+                    regions |= DIRTY_ALL;
+                    takeLayout(layout);
+                }
+                Canvas canvas;
+                boolean isPartial = getDirtyRect(layout, regions, mDirtyRect);
+                if (isPartial) {
+                    if (mDirtyRect.isEmpty()) {
+                        continue;
+                    }
+                    canvas = holder.lockCanvas(mDirtyRect); // the rest is kept from the last one
+                } else {
+                    canvas = holder.lockCanvas();
+                }
+                if (canvas != null) {
+                    try {
+                        Frame frame = mFrames.acquire();
+                        drawFrame(canvas, layout, frame);
+                        if (BuildConfig.DEBUG) {
+                            checkFrame(layout, frame, (isPartial) ? mDirtyRect : null);
+                        }
+                    } finally {
+                        holder.unlockCanvasAndPost(canvas);
+                    }
+                }
+            }
+        }
+    }
+
+    private void drawFrame(Canvas canvas, Layout layout, Frame frame) {
+        canvas.drawColor(mBackgroundColor);
+
+        /*  Arduboy  */
+        if (layout.skinLayer != null) {
+            if (layout.skinLayer.isRecycled()) {
+                return; // destroyed
+            }
+            canvas.drawBitmap(layout.skinLayer, layout.skinLayerX, layout.skinLayerY, null);
+        } else {
+            mSkin.draw(canvas, layout.skinMatrix);
+        }
+        synchronized (frame.bitmap) {
+            if (!frame.bitmap.isRecycled()) {
+                canvas.drawBitmap(frame.bitmap, layout.screenMatrix, mScreenPaint);
+            }
+        }
+
+        /*  Flare of RGB LED  */
+        int rgb = frame.ledRgb;
+        if (rgb != Color.BLACK) {
+            if (rgb != mLedRgbFlareRgb) {
+                int r = Color.red(rgb), g = Color.green(rgb), b = Color.blue(rgb);
+                int level = Math.max(Math.max(r, g), b);
+                int gain = LED_RGB_FLARE_GAINS[level]; // full brightness in the same hue
+                mLedRgbFlare.paint.setColor(Color.rgb((r * gain + 0x8000) >> 16,
+                        (g * gain + 0x8000) >> 16, (b * gain + 0x8000) >> 16));
+                float flareSize = LED_RGB_FLARE_SIZES[level];
+                mLedRgbFlare.matrix.set(layout.getMatrixCenter(mLedRgbFlare.bitmap,
+                        LED_RGB_X, LED_RGB_Y, flareSize, flareSize));
+                mLedRgbFlareRgb = rgb;
+            }
+            mLedRgbFlare.draw(canvas, mLedRgbFlare.matrix);
+        }
+
+        /*  Flares of UART LEDs  */
+        for (int i = 0; i < LED_UART_ID_MAX; i++) {
+            if (frame.ledUartOn[i]) {
+                mLedUartPaint.setColor(LED_UART_FLARE_COLORS[i]);
+                synchronized (mLedRgbFlare) {
+                    if (!mLedRgbFlare.bitmap.isRecycled()) {
+                        canvas.drawBitmap(mLedRgbFlare.bitmap, layout.ledUartMatrices[i],
+                                mLedUartPaint);
+                    }
+                }
+            }
+        }
+
+        /*  Buttons  */
+        if (layout.isDrawButton) {
+            int pressedButtons = mPressedButtons;
+            for (int buttonIdx = 0; buttonIdx < Native.BUTTON_MAX; buttonIdx++) {
+                boolean isPressed = (pressedButtons & 1 << buttonIdx) != 0;
+                mButtonPaint.setColor(isPressed ? BUTTON_COLOR_ON : BUTTON_COLOR_OFF);
+                PointF position = layout.buttonPositions[buttonIdx];
+                canvas.drawCircle(position.x, position.y, layout.buttonSize, mButtonPaint);
+            }
+        }
+    }
+
+    /**
+     * Checks in debug builds that drawing only the dirty regions leaves the same pixels as
+     * drawing the whole view. The frame is drawn the same way into a software bitmap which
+     * follows the surface, and compared with a full redraw every CHECK_INTERVAL partial ones.
+     */
+    private void checkFrame(Layout layout, Frame frame, Rect dirtyRect) {
+        if (mCheckPartial == null || mCheckPartial.getWidth() != layout.width
+                || mCheckPartial.getHeight() != layout.height) {
+            if (mCheckPartial != null) {
+                mCheckPartial.recycle();
+                mCheckFull.recycle();
+            }
+            mCheckPartial = Bitmap.createBitmap(layout.width, layout.height,
+                    Bitmap.Config.ARGB_8888);
+            mCheckFull = Bitmap.createBitmap(layout.width, layout.height,
+                    Bitmap.Config.ARGB_8888);
+            dirtyRect = null;
+        }
+        Canvas canvas = new Canvas(mCheckPartial);
+        if (dirtyRect != null) {
+            canvas.clipRect(dirtyRect);
+        }
+        drawFrame(canvas, layout, frame);
+        if (dirtyRect == null || ++mCheckCount < CHECK_INTERVAL) {
+            return;
+        }
+        mCheckCount = 0;
+        drawFrame(new Canvas(mCheckFull), layout, frame);
+        if (!mCheckPartial.sameAs(mCheckFull)) {
+            new IllegalStateException("Partial redraw differs from full redraw")
+                    .printStackTrace();
+            mCheckPartial.eraseColor(Color.TRANSPARENT);
+            drawFrame(new Canvas(mCheckPartial), layout, frame);
+        }
     }
 
 }
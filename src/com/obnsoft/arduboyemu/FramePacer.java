@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+public class FramePacer {
+
+    private static final long ONE_SECOND_NS = 1000000000L;
+    private static final long ONE_MILLI_NS = 1000000L;
+
+    private static final long DEFAULT_SPIN_NS = 500000L; // 0.5 ms
+    private static final int DEFAULT_MAX_SKIP = 4;
+    private static final int RESYNC_FRAMES = 15; // give up catching up beyond this
+
+    private int     mFps;
+    private long    mFrameNs;
+    private long    mTargetTime;
+    private long    mSpinNs = DEFAULT_SPIN_NS;
+    private int     mMaxSkip = DEFAULT_MAX_SKIP;
+    private int     mSkipCount;
+
+    private long    mFrameCount;
+    private long    mLateCount;
+    private long    mSkipTotal;
+    private long    mResyncCount;
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Restarts pacing at the specified frame rate.
+     */
+    public synchronized void reset(int fps) {
+        mFps = Math.max(fps, 1);
+        mFrameNs = ONE_SECOND_NS / mFps;
+        mTargetTime = now() + mFrameNs;
+        mSkipCount = 0;
+    }
+
+    public int getFps() {
+        return mFps;
+    }
+
+    /**
+     * Sets the length of busy waiting at the end of each frame for precise timing.
+     */
+    public void setSpinNanos(long spinNs) {
+        mSpinNs = Math.max(spinNs, 0);
+    }
+
+    /**
+     * Sets the maximum number of consecutive frames whose presentation can be skipped.
+     */
+    public void setMaxSkip(int maxSkip) {
+        mMaxSkip = Math.max(maxSkip, 0);
+    }
+
+    /**
+     * Decides whether the frame which has just been emulated should be presented.
+     * The presentation is skipped while the emulation falls behind the schedule.
+     *
+     * @return true if the frame should be presented.
+     */
+    public synchronized boolean isPresentFrame() {
+        mFrameCount++;
+        long lateness = now() - mTargetTime;
+        if (lateness > 0) {
+            mLateCount++;
+        }
+        if (lateness > mFrameNs && mSkipCount < mMaxSkip) {
+            mSkipCount++;
+            mSkipTotal++;
+            return false;
+        }
+        mSkipCount = 0;
+        return true;
+    }
+
+    /**
+     * Waits until the time of the next frame.
+     */
+    public synchronized void waitNextFrame() {
+        long currentTime = now();
+        long remain = mTargetTime - currentTime;
+        if (remain > mSpinNs) {
+            sleep(remain - mSpinNs);
+        }
+        while (now() < mTargetTime) {
+            Thread.yield();
+        }
+        mTargetTime += mFrameNs;
+        if (currentTime - mTargetTime > mFrameNs * RESYNC_FRAMES) {
+            mTargetTime = currentTime + mFrameNs; // too late to catch up
+            mResyncCount++;
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    public long getFrameCount() {
+        return mFrameCount;
+    }
+
+    public long getLateFrameCount() {
+        return mLateCount;
+    }
+
+    public long getSkippedFrameCount() {
+        return mSkipTotal;
+    }
+
+    public long getResyncCount() {
+        return mResyncCount;
+    }
+
+    public synchronized void resetCounters() {
+        mFrameCount = 0;
+        mLateCount = 0;
+        mSkipTotal = 0;
+        mResyncCount = 0;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    protected long now() {
+        return System.nanoTime();
+    }
+
+    protected void sleep(long nanos) {
+        try {
+            Thread.sleep(nanos / ONE_MILLI_NS, (int) (nanos % ONE_MILLI_NS));
+        } catch (InterruptedException e) {
+            // do nothing
+        }
+    }
+
+}
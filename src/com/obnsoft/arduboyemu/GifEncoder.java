@@ -21,44 +21,166 @@
 
 package com.obnsoft.arduboyemu;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
-public class GifEncoder {
+public class GifEncoder implements MovieEncoder {
 
     private static final int WIDTH = 128;
     private static final int HEIGHT = 64;
     private static final int PIXELS = WIDTH * HEIGHT;
-    private static final int DELAY = 2; // frame delay (hundredths)
-    private static final byte[] PALETTE = new byte[] { 0, 0, 0, -1, -1, -1 };
-    private static final int COLOR_DEPTH = 1; // color depth
-    private static final int PAL_SIZE = 0; // palette size (bits-1)
+    private static final int MIN_DELAY = 2; // shorter delays are slowed down by most viewers
+    private static final int MAX_DELAY = 0xFFFF;
+    private static final byte[] PALETTE = new byte[] { 0, 0, 0, -1, -1, -1, 0, 0, 0, 0, 0, 0 };
+    private static final int COLOR_DEPTH = 2; // color depth
+    private static final int PAL_SIZE = 1; // palette size (bits-1)
+    private static final int TRANSPARENT = 2; // color index of unchanged pixels
+    private static final int MAX_QUEUED_IMAGES = 64; // images being encoded in parallel
+
+    /**
+     * Encodes image blocks. Each thread needs its own instance.
+     */
+    private static class ImageBlockEncoder {
+        private LZWEncoder mLzwEncoder = new LZWEncoder(COLOR_DEPTH);
+        private byte[] mRegionPixels = new byte[PIXELS];
+
+        /**
+         * Writes Image Block. If the base image is specified, only the bounding box of
+         * changed pixels is written and unchanged pixels in it are made transparent.
+         */
+        void encode(OutputStream out, byte[] indexedPixels, byte[] basePixels)
+                throws IOException {
+            if (basePixels == null) {
+                writeImageDesc(out, 0, 0, WIDTH, HEIGHT); // image descriptor
+                mLzwEncoder.encode(out, indexedPixels, PIXELS); // encoded pixel data
+                return;
+            }
+
+            int left = WIDTH, top = HEIGHT, right = 0, bottom = 0;
+            for (int y = 0, i = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < WIDTH; x++, i++) {
+                    if (indexedPixels[i] != basePixels[i]) {
+                        left = Math.min(left, x);
+                        right = Math.max(right, x + 1);
+                        top = Math.min(top, y);
+                        bottom = y + 1;
+                    }
+                }
+            }
+            if (right == 0) {
+                left = 0; // no change, but an image is needed for timing
+                top = 0;
+                right = 1;
+                bottom = 1;
+            }
+            byte[] regionPixels = mRegionPixels;
+            int count = 0;
+            for (int y = top; y < bottom; y++) {
+                for (int i = y * WIDTH + left, end = y * WIDTH + right; i < end; i++) {
+                    byte pixel = indexedPixels[i];
+                    regionPixels[count++] = (pixel == basePixels[i]) ? TRANSPARENT : pixel;
+                }
+            }
+            writeImageDesc(out, left, top, right - left, bottom - top); // image descriptor
+            mLzwEncoder.encode(out, regionPixels, count); // encoded pixel data
+        }
+    }
+
+    private static class QueuedImage {
+        Future<ByteArrayOutputStream> block;
+        int delay;
+
+        QueuedImage(Future<ByteArrayOutputStream> block, int delay) {
+            this.block = block;
+            this.delay = delay;
+        }
+    }
 
     private File mWorkFile;
     private OutputStream mWorkStream;
+    private ByteBuffer mWriteBuffer; // reused for every file
     private boolean mIsStarted = false; // ready to output frames
     private boolean mIsFirstFrame = true;
+    private ByteArrayOutputStream mLastImageBlock = new ByteArrayOutputStream();
+    private byte[] mIndexedPixels = new byte[PIXELS]; // reused for every frame
+    private byte[] mLastIndexedPixels = new byte[PIXELS];
+    private byte[] mCanvasPixels = new byte[PIXELS]; // image after written frames
+    private int mFps;
+    private int mPendingFrames; // frames covered by the image which is not written yet
+    private long mWrittenFrames;
+    private long mWrittenDelay; // hundredths
+    private ImageBlockEncoder mBlockEncoder = new ImageBlockEncoder();
+
+    private ExecutorService mExecutor;
+    private ThreadLocal<ImageBlockEncoder> mWorkerEncoders;
+    private Future<ByteArrayOutputStream> mPendingBlock;
+    private ArrayDeque<QueuedImage> mQueuedImages = new ArrayDeque<QueuedImage>();
+
+    /**
+     * Sets the executor to encode images in parallel, or null to encode them on the
+     * calling thread. The output is the same either way.
+     */
+    public void setExecutor(ExecutorService executor) {
+        mExecutor = executor;
+        if (executor != null && mWorkerEncoders == null) {
+            mWorkerEncoders = new ThreadLocal<ImageBlockEncoder>() {
+                @Override
+                protected ImageBlockEncoder initialValue() {
+                    return new ImageBlockEncoder();
+                }
+            };
+        }
+    }
 
     /**
      * Initiates GIF file creation.
      *
+     * @param fps the number of frames per second which are added.
      * @return false if initial write failed.
      */
-    public boolean start(File file) {
+    public boolean start(File file, int fps) {
+        if (mIsStarted) {
+            return false;
+        }
+        try {
+            if (start(openStream(file), fps)) {
+                mWorkFile = file;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return mIsStarted;
+    }
+
+    /**
+     * Initiates GIF creation into the specified stream, which is closed by
+     * <code>finish()</code>. This is for benchmarking output streams.
+     */
+    boolean start(OutputStream out, int fps) {
         if (mIsStarted) {
             return false;
         }
         try {
-            mWorkFile = file;
-            mWorkStream = new FileOutputStream(file);
+            mWorkStream = out;
             writeHeader(mWorkStream); // header
             mIsStarted = true;
             mIsFirstFrame = true;
+            mFps = Math.max(fps, 1);
+            mPendingFrames = 0;
+            mWrittenFrames = 0;
+            mWrittenDelay = 0;
         } catch (IOException e) {
             e.printStackTrace();
-            mWorkFile = null;
             mWorkStream = null;
         }
         return mIsStarted;
@@ -66,8 +188,9 @@ public class GifEncoder {
 
     /**
      * Adds next GIF frame. The frame is not written immediately, but is
-     * actually deferred until the next frame is received so that timing data
-     * can be inserted. Invoking <code>finish()</code> flushes all frames.
+     * actually deferred until a different frame is received so that timing data
+     * can be inserted. Identical frames in a row are merged into one image.
+     * Invoking <code>finish()</code> flushes all frames.
      *
      * @return true if successful.
      */
@@ -75,23 +198,35 @@ public class GifEncoder {
         if (!mIsStarted || pixels == null || pixels.length != PIXELS) {
             return false;
         }
-        boolean ret = false;
-        try {
-            if (mIsFirstFrame) {
-                writeLSD(mWorkStream); // logical screen descriptor
-                writePalette(mWorkStream); // global color table
-                writeApplicationExtension(mWorkStream); // application extension
-                mIsFirstFrame = false;
-            }
-            byte[] indexedPixels = analyzePixels(pixels); // build map pixels
-            writeGraphicCtrlExt(mWorkStream); // write graphic control extension
-            writeImageBlock(mWorkStream, indexedPixels); // write image block
-            ret = true;
-        } catch (IOException e) {
-            e.printStackTrace();
+        analyzePixels(pixels); // build map pixels
+        return addIndexedFrame();
+    }
+
+    /**
+     * Adds next GIF frame from packed 1-bit pixels, which are row-major and the
+     * leftmost pixel is the MSB of each byte. No color analysis is needed.
+     *
+     * @return true if successful.
+     */
+    public boolean addPackedFrame(byte[] packedPixels) {
+        if (!mIsStarted || packedPixels == null || packedPixels.length != PIXELS / 8) {
+            return false;
         }
+        unpackPixels(packedPixels);
+        return addIndexedFrame();
+    }
 
-        return ret;
+    /**
+     * Adds the same image as the previous frame again, which only extends its delay.
+     *
+     * @return true if successful.
+     */
+    public boolean addRepeatedFrame() {
+        if (!mIsStarted || mPendingFrames == 0) {
+            return false;
+        }
+        mPendingFrames++;
+        return true;
     }
 
     /**
@@ -103,16 +238,31 @@ public class GifEncoder {
         }
         boolean ret = false;
         try {
+            if (mPendingFrames > 0) {
+                writePendingFrame(mWorkStream, Math.max(getPendingDelay(), MIN_DELAY));
+            }
+            while (!mQueuedImages.isEmpty()) {
+                writeQueuedImage(mWorkStream);
+            }
             writeTrailer(mWorkStream); // gif trailer
             mWorkStream.close();
-            mWorkFile.renameTo(file);
+            if (mWorkFile != null) {
+                mWorkFile.renameTo(file);
+            }
             ret = true;
         } catch (IOException e) {
             e.printStackTrace();
-            mWorkFile.delete();
+            if (mWorkFile != null) {
+                mWorkFile.delete();
+            }
         }
 
         // reset for subsequent use
+        for (QueuedImage image : mQueuedImages) {
+            image.block.cancel(false);
+        }
+        mQueuedImages.clear();
+        mPendingBlock = null;
         mWorkFile = null;
         mWorkStream = null;
         mIsStarted = false;
@@ -120,18 +270,57 @@ public class GifEncoder {
         return ret;
     }
 
+    private boolean addIndexedFrame() {
+        boolean ret = false;
+        try {
+            if (mIsFirstFrame) {
+                writeLSD(mWorkStream); // logical screen descriptor
+                writePalette(mWorkStream); // global color table
+                writeApplicationExtension(mWorkStream); // application extension
+                mIsFirstFrame = false;
+            }
+            if (mPendingFrames > 0) {
+                if (Arrays.equals(mIndexedPixels, mLastIndexedPixels)) {
+                    mPendingFrames++;
+                    return true;
+                }
+                int delay = getPendingDelay();
+                if (delay >= MIN_DELAY) {
+                    writePendingFrame(mWorkStream, delay);
+                } // otherwise the pending image is replaced and its time is carried over
+            }
+            byte[] basePixels = (mWrittenFrames > 0) ? mCanvasPixels : null;
+            if (mExecutor == null) {
+                mLastImageBlock.reset(); // encode image block
+                mBlockEncoder.encode(mLastImageBlock, mIndexedPixels, basePixels);
+            } else {
+                if (mPendingBlock != null) {
+                    mPendingBlock.cancel(false); // replaced
+                }
+                mPendingBlock = submitImageBlock(mIndexedPixels.clone(),
+                        (basePixels != null) ? basePixels.clone() : null);
+            }
+            System.arraycopy(mIndexedPixels, 0, mLastIndexedPixels, 0, PIXELS);
+            mPendingFrames++;
+            ret = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return ret;
+    }
+
     public boolean oneShot(File file, int[] pixels) {
         if (pixels == null || pixels.length != PIXELS) {
             return false;
         }
         boolean ret = false;
         try {
-            FileOutputStream out = new FileOutputStream(file);
+            OutputStream out = openStream(file);
             writeHeader(out); // header
             writeLSD(out); // logical screen descriptor
             writePalette(out); // global color table
-            byte[] indexedPixels = analyzePixels(pixels); // build map pixels
-            writeImageBlock(out, indexedPixels); // write image block
+            analyzePixels(pixels); // build map pixels
+            mBlockEncoder.encode(out, mIndexedPixels, null); // write image block
             writeTrailer(out); // gif trailer
             out.close();
             ret = true;
@@ -142,18 +331,106 @@ public class GifEncoder {
         return ret;
     }
 
+    private OutputStream openStream(File file) throws IOException {
+        if (mWriteBuffer == null) {
+            mWriteBuffer = ByteBuffer.allocateDirect(ChannelOutputStream.DEFAULT_BUFFER_SIZE);
+        }
+        return new ChannelOutputStream(new FileOutputStream(file).getChannel(), mWriteBuffer);
+    }
+
+    /**
+     * Calculates the delay of the pending image so that the total delay follows the
+     * elapsed time of frames, which carries the rounding error over to the next image.
+     */
+    private int getPendingDelay() {
+        long frames = mWrittenFrames + mPendingFrames;
+        long totalDelay = (frames * 200 + mFps) / (mFps * 2); // rounded
+        return (int) (totalDelay - mWrittenDelay);
+    }
+
+    /**
+     * Writes the pending image with the specified delay.
+     */
+    private void writePendingFrame(OutputStream out, int delay) throws IOException {
+        mWrittenFrames += mPendingFrames;
+        mWrittenDelay += delay;
+        mPendingFrames = 0;
+        System.arraycopy(mLastIndexedPixels, 0, mCanvasPixels, 0, PIXELS);
+        if (mExecutor == null) {
+            writeImage(out, mLastImageBlock, delay);
+            return;
+        }
+        mQueuedImages.add(new QueuedImage(mPendingBlock, delay));
+        mPendingBlock = null;
+        while (mQueuedImages.size() > MAX_QUEUED_IMAGES) {
+            writeQueuedImage(out);
+        }
+    }
+
+    /**
+     * Writes the oldest image encoded in parallel, waiting for its completion.
+     */
+    private void writeQueuedImage(OutputStream out) throws IOException {
+        QueuedImage image = mQueuedImages.poll();
+        try {
+            writeImage(out, image.block.get(), image.delay);
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private Future<ByteArrayOutputStream> submitImageBlock(
+            final byte[] indexedPixels, final byte[] basePixels) {
+        return mExecutor.submit(new Callable<ByteArrayOutputStream>() {
+            @Override
+            public ByteArrayOutputStream call() throws IOException {
+                ByteArrayOutputStream block = new ByteArrayOutputStream();
+                mWorkerEncoders.get().encode(block, indexedPixels, basePixels);
+                return block;
+            }
+        });
+    }
+
+    /**
+     * Writes the encoded image block with the specified delay.
+     */
+    private void writeImage(OutputStream out, ByteArrayOutputStream block, int delay)
+            throws IOException {
+        while (delay > MAX_DELAY) {
+            writeGraphicCtrlExt(out, MAX_DELAY - MIN_DELAY);
+            block.writeTo(out);
+            delay -= MAX_DELAY - MIN_DELAY;
+        }
+        writeGraphicCtrlExt(out, delay); // write graphic control extension
+        block.writeTo(out); // write image block
+    }
+
     /**
      * Analyzes image colors and creates color map.
      */
-    private byte[] analyzePixels(int[] pixels) {
-        byte[] indexedPixels = new byte[PIXELS];
+    private void analyzePixels(int[] pixels) {
+        byte[] indexedPixels = mIndexedPixels;
         for (int i = 0; i < PIXELS; i++) {
             int c = pixels[i];
             int r = (c >> 16) & 0xFF, g = (c >> 8) & 0xFF, b = c & 0xFF;
             boolean isWhite = ((306 * r + 601 * g + 117 * b) >= 512);
             indexedPixels[i] = (byte) (isWhite ? 1 : 0);
         }
-        return indexedPixels;
+    }
+
+    /**
+     * Expands packed 1-bit pixels into color indexes.
+     */
+    private void unpackPixels(byte[] packedPixels) {
+        byte[] indexedPixels = mIndexedPixels;
+        for (int i = 0, j = 0; i < PIXELS / 8; i++) {
+            int bits = packedPixels[i];
+            for (int mask = 0x80; mask != 0; mask >>= 1) {
+                indexedPixels[j++] = (byte) (((bits & mask) != 0) ? 1 : 0);
+            }
+        }
     }
 
     /**
@@ -204,40 +481,32 @@ public class GifEncoder {
     /**
      * Writes Graphic Control Extension
      */
-    private void writeGraphicCtrlExt(OutputStream out) throws IOException {
+    private void writeGraphicCtrlExt(OutputStream out, int delay) throws IOException {
         out.write(0x21); // extension introducer
         out.write(0xf9); // GCE label
         out.write(4); // data block size
 
         // packed fields
         out.write(0 | // 1:3 reserved
-                0 | // 4:6 disposal
+                4 | // 4:6 disposal = 1 (do not dispose)
                 0 | // 7 user input = 0 (none)
-                0); // 8 transparency flag = 0 (none)
+                1); // 8 transparency flag = 1
 
-        writeShort(out, DELAY); // delay x 1/100 sec
-        out.write(0); // transparent color index = 0
+        writeShort(out, delay); // delay x 1/100 sec
+        out.write(TRANSPARENT); // transparent color index
         out.write(0); // block terminator
     }
 
-    /**
-     * Writes Image Block
-     */
-    private void writeImageBlock(OutputStream out, byte[] indexedPixels) throws IOException {
-        writeImageDesc(out); // image descriptor
-        LZWEncoder encoder = new LZWEncoder(WIDTH, HEIGHT, indexedPixels, COLOR_DEPTH);
-        encoder.encode(out); // encoded pixel data
-    }
-
     /**
      * Writes Image Descriptor
      */
-    private void writeImageDesc(OutputStream out) throws IOException {
+    private static void writeImageDesc(OutputStream out, int x, int y, int width, int height)
+            throws IOException {
         out.write(0x2c); // image separator
-        writeShort(out, 0); // image position x,y = 0,0
-        writeShort(out, 0);
-        writeShort(out, WIDTH); // image size = 128x64
-        writeShort(out, HEIGHT);
+        writeShort(out, x); // image position
+        writeShort(out, y);
+        writeShort(out, width); // image size
+        writeShort(out, height);
         out.write(0); // no LCT - GCT is used
     }
 
@@ -252,7 +521,7 @@ public class GifEncoder {
     /**
      * Write 16-bit value to output stream, LSB first
      */
-    private void writeShort(OutputStream out, int value) throws IOException {
+    private static void writeShort(OutputStream out, int value) throws IOException {
         out.write(value & 0xff);
         out.write((value >> 8) & 0xff);
     }
@@ -276,8 +545,6 @@ class LZWEncoder {
 
     private static final int EOF = -1;
 
-    private int imgW, imgH;
-
     private byte[] pixAry;
 
     private int initCodeSize;
@@ -375,10 +642,7 @@ class LZWEncoder {
     byte[] accum = new byte[256];
 
     // ----------------------------------------------------------------------------
-    LZWEncoder(int width, int height, byte[] pixels, int color_depth) {
-        imgW = width;
-        imgH = height;
-        pixAry = pixels;
+    LZWEncoder(int color_depth) {
         initCodeSize = Math.max(2, color_depth);
     }
 
@@ -481,11 +745,16 @@ class LZWEncoder {
     }
 
     // ----------------------------------------------------------------------------
-    void encode(OutputStream os) throws IOException {
+    // The encoder can be used repeatedly; the tables and the accumulator are
+    // reset here instead of being allocated for each image.
+    void encode(OutputStream os, byte[] pixels, int count) throws IOException {
         os.write(initCodeSize); // write "initial code size" byte
 
-        remaining = imgW * imgH; // reset navigation variables
+        pixAry = pixels;
+        remaining = count; // reset navigation variables
         curPixel = 0;
+        cur_accum = 0;
+        cur_bits = 0;
 
         compress(initCodeSize + 1, os); // compress and write the pixel data
 
@@ -0,0 +1,734 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Runs a program without any Activity or View, as fast as possible.
+ * This class must not depend on Android framework so that it works on a plain JVM
+ * with the native library built by jni/host/Makefile.
+ *
+ * <pre>
+ * java -Djava.library.path=jni/host/out -cp jni/host/out/classes:json.jar \
+ *     com.obnsoft.arduboyemu.HeadlessRunner [options] file.hex|file.arduboy
+ * </pre>
+ * With -b, each of the given programs is run by simavr alone, with the predecoded instruction
+ * cache and with basic block translation, and the speed of each is printed. The screen checksums
+ * of all runs must be the same.
+ * With -w, the movie of the program is encoded as GIF through an unbuffered FileOutputStream and
+ * through ChannelOutputStream, and the numbers of write operations and the throughputs are printed.
+ * With -v, the program is run by each engine with and without busy-wait loop skipping, and all
+ * the screen checksums must be the same as the given file. Each run also saves the state halfway,
+ * and a new instance which loads it must continue with the same checksums. -r records the file
+ * from simavr alone without busy-wait loop skipping, only if all the runs agree.
+ */
+public class HeadlessRunner {
+
+    private static final int DEFAULT_FRAMES = 600;
+    private static final int EEPROM_SIZE = 1024;
+    private static final int PIXELS_SIZE = 128 * 64;
+    private static final int BITS_SIZE = PIXELS_SIZE / 8;
+    private static final int MOVIE_FPS = 60;
+    private static final int WRITE_BENCHMARK_ROUNDS = 5;
+    private static final long ONE_SECOND_NS = 1000000000L;
+    private static final double CPU_CLOCK_HZ = 16000000.0;
+
+    private static final String EXT_ARDUBOY = ".arduboy";
+    private static final String BUTTON_CHARS = "UDLRAB"; // order of Native.BUTTON_*
+    private static final String CHECKSUMS_FILE_NAME = "checksums.txt";
+    private static final String EEPROM_FILE_NAME = "eeprom.bin";
+    private static final String FRAME_FILE_NAME_FORMAT = "frame_%05d.gif";
+
+    private static final int EXIT_OK = 0;
+    private static final int EXIT_ERROR = 1;
+    private static final int EXIT_CRASHED = 2;
+
+    private static final int[] VERIFY_ENGINE_FLAGS =
+            { 0, Native.FLAG_PREDECODE, Native.FLAG_TRANSLATE };
+    private static final String[] VERIFY_ENGINE_NAMES = { "simavr", "predecode", "translate" };
+
+    private ArrayList<File> mProgramFiles = new ArrayList<File>();
+    private File    mScriptFile;
+    private File    mEepromFile;
+    private File    mOutDir = new File(".");
+    private int     mFrames = DEFAULT_FRAMES;
+    private boolean mIsTuned;
+    private boolean mIsPostponeRefresh;
+    private boolean mIsBusyLoopSkip = true;
+    private int     mEngineFlags;   // 0, Native.FLAG_PREDECODE or Native.FLAG_TRANSLATE
+    private boolean mIsBenchmark;
+    private boolean mIsWriteBenchmark;
+    private File    mChecksumsFile; // to verify with, or to record with mIsRecord
+    private boolean mIsRecord;
+    private TreeMap<Integer, Integer>   mTimeline = new TreeMap<Integer, Integer>();
+    private TreeSet<Integer>            mCaptureFrames = new TreeSet<Integer>();
+
+    private static class Result {
+        int     status = Native.STATUS_RUNNING;
+        int     frames;
+        long    cycles;
+        long    idleCycles;
+        long    busyCycles;
+        long    stepTime;
+        long    totalTime;
+        int[]   checksums;
+        byte[]  eeprom;
+        byte[]  state;
+
+        /**
+         * @return AVR clock rate of the instructions actually interpreted, in MHz.
+         */
+        double getExecutedMhz() {
+            return (stepTime > 0) ?
+                    (cycles - idleCycles - busyCycles) * 1000.0 / stepTime : 0.0;
+        }
+    }
+
+    /**
+     * Unbuffered stream which counts write operations to the underlying stream.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        int writeCount;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            writeCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            writeCount++;
+        }
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    public static void main(String[] args) {
+        HeadlessRunner runner = new HeadlessRunner();
+        int ret;
+        try {
+            if (!runner.parseArgs(args)) {
+                ret = EXIT_ERROR;
+            } else {
+                if (runner.mIsWriteBenchmark) {
+                    ret = runner.runWriteBenchmark();
+                } else if (runner.mChecksumsFile != null) {
+                    ret = runner.runVerify();
+                } else {
+                    ret = (runner.mIsBenchmark) ? runner.runBenchmark() : runner.run();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            ret = EXIT_ERROR;
+        }
+        System.exit(ret);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: HeadlessRunner [options] <file.hex|file.arduboy>");
+        System.err.println("       HeadlessRunner -b [options] <file.hex|file.arduboy>...");
+        System.err.println("       HeadlessRunner -v|-r <checksums> [options] <file.hex|file.arduboy>");
+        System.err.println("  -f <frames>    number of frames to emulate (default " + DEFAULT_FRAMES + ")");
+        System.err.println("  -s <script>    button timeline; each line is \"<frame> <buttons>\"");
+        System.err.println("                 where buttons are letters of " + BUTTON_CHARS
+                + " or \"-\" for none");
+        System.err.println("  -c <list>      comma separated frame numbers to save as GIF");
+        System.err.println("  -e <eeprom>    initial EEPROM image");
+        System.err.println("  -o <dir>       output directory (default current directory)");
+        System.err.println("  -t             enable emulation tuning");
+        System.err.println("  -p             postpone screen refresh timing");
+        System.err.println("  -n             don't fast-forward busy-wait loops");
+        System.err.println("  -d             use predecoded instruction cache");
+        System.err.println("  -x             use basic block translation");
+        System.err.println("  -b             benchmark predecode and translation against simavr");
+        System.err.println("  -w             benchmark buffered GIF output against FileOutputStream");
+        System.err.println("  -v <checksums> verify all engines and save states against checksums");
+        System.err.println("  -r <checksums> record checksums if all engines and save states agree");
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private boolean parseArgs(String[] args) throws IOException {
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if ("-f".equals(arg)) {
+                    mFrames = Integer.parseInt(args[++i]);
+                } else if ("-s".equals(arg)) {
+                    mScriptFile = new File(args[++i]);
+                } else if ("-c".equals(arg)) {
+                    for (String frame : args[++i].split(",")) {
+                        mCaptureFrames.add(Integer.valueOf(frame.trim()));
+                    }
+                } else if ("-e".equals(arg)) {
+                    mEepromFile = new File(args[++i]);
+                } else if ("-o".equals(arg)) {
+                    mOutDir = new File(args[++i]);
+                } else if ("-t".equals(arg)) {
+                    mIsTuned = true;
+                } else if ("-p".equals(arg)) {
+                    mIsPostponeRefresh = true;
+                } else if ("-n".equals(arg)) {
+                    mIsBusyLoopSkip = false;
+                } else if ("-d".equals(arg)) {
+                    mEngineFlags = Native.FLAG_PREDECODE;
+                } else if ("-x".equals(arg)) {
+                    mEngineFlags = Native.FLAG_TRANSLATE;
+                } else if ("-b".equals(arg)) {
+                    mIsBenchmark = true;
+                } else if ("-w".equals(arg)) {
+                    mIsWriteBenchmark = true;
+                } else if ("-v".equals(arg)) {
+                    mChecksumsFile = new File(args[++i]);
+                    mIsRecord = false;
+                } else if ("-r".equals(arg)) {
+                    mChecksumsFile = new File(args[++i]);
+                    mIsRecord = true;
+                } else if (arg.startsWith("-")) {
+                    usage();
+                    return false;
+                } else {
+                    mProgramFiles.add(new File(arg));
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            usage();
+            return false;
+        } catch (NumberFormatException e) {
+            usage();
+            return false;
+        }
+        if (mProgramFiles.isEmpty() || (mProgramFiles.size() > 1 && !mIsBenchmark)
+                || mFrames <= 0) {
+            usage();
+            return false;
+        }
+        if (mScriptFile != null && !loadScript(mScriptFile)) {
+            return false;
+        }
+        return true;
+    }
+
+    private boolean loadScript(File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int commentIdx = line.indexOf('#');
+                if (commentIdx >= 0) {
+                    line = line.substring(0, commentIdx);
+                }
+                line = line.trim();
+                if (line.length() == 0) {
+                    continue;
+                }
+                String[] tokens = line.split("\\s+");
+                int buttons = (tokens.length >= 2) ? parseButtons(tokens[1]) : 0;
+                if (tokens.length > 2 || buttons < 0) {
+                    System.err.println(file + ":" + lineNumber + ": Invalid line");
+                    return false;
+                }
+                try {
+                    mTimeline.put(Integer.valueOf(tokens[0]), buttons);
+                } catch (NumberFormatException e) {
+                    System.err.println(file + ":" + lineNumber + ": Invalid frame number");
+                    return false;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return true;
+    }
+
+    private static int parseButtons(String token) {
+        if ("-".equals(token)) {
+            return 0;
+        }
+        int buttons = 0;
+        for (char c : token.toUpperCase(Locale.US).toCharArray()) {
+            int buttonIdx = BUTTON_CHARS.indexOf(c);
+            if (buttonIdx < 0) {
+                return -1;
+            }
+            buttons |= 1 << buttonIdx;
+        }
+        return buttons;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private int run() throws IOException {
+        if (!mOutDir.isDirectory() && !mOutDir.mkdirs()) {
+            System.err.println("Failed to create " + mOutDir);
+            return EXIT_ERROR;
+        }
+        File programFile = mProgramFiles.get(0);
+        File hexFile = prepareHexFile(programFile);
+        byte[] eeprom = prepareEeprom();
+        if (hexFile == null || eeprom == null) {
+            return EXIT_ERROR;
+        }
+        Result result = emulate(hexFile, eeprom, mEngineFlags, true, null);
+        if (result == null) {
+            System.err.println("Failed to load " + programFile);
+            return EXIT_ERROR;
+        }
+
+        /*  Write results  */
+        writeChecksums(new File(mOutDir, CHECKSUMS_FILE_NAME), result.checksums);
+        OutputStream out = new FileOutputStream(new File(mOutDir, EEPROM_FILE_NAME));
+        try {
+            out.write(result.eeprom);
+        } finally {
+            out.close();
+        }
+        printStatistics(result);
+        return (result.status == Native.STATUS_RUNNING) ? EXIT_OK : EXIT_CRASHED;
+    }
+
+    private int runBenchmark() throws IOException {
+        byte[] eeprom = prepareEeprom();
+        if (eeprom == null) {
+            return EXIT_ERROR;
+        }
+        System.out.println(String.format(Locale.US, "%-24s %8s %10s %10s %10s %7s  %s",
+                "program", "frames", "simavr", "predecode", "translate", "ratio", "checksums"));
+        int ret = EXIT_OK;
+        for (File programFile : mProgramFiles) {
+            File hexFile = prepareHexFile(programFile);
+            if (hexFile == null) {
+                ret = EXIT_ERROR;
+                continue;
+            }
+            Result stock = emulate(hexFile, eeprom, 0, false, null);
+            Result cached = emulate(hexFile, eeprom, Native.FLAG_PREDECODE, false, null);
+            Result translated = emulate(hexFile, eeprom, Native.FLAG_TRANSLATE, false, null);
+            if (stock == null || cached == null || translated == null) {
+                System.err.println("Failed to load " + programFile);
+                ret = EXIT_ERROR;
+                continue;
+            }
+            boolean isMatched = Arrays.equals(stock.checksums, cached.checksums)
+                    && Arrays.equals(stock.checksums, translated.checksums);
+            double stockMhz = stock.getExecutedMhz();
+            double translatedMhz = translated.getExecutedMhz();
+            System.out.println(String.format(Locale.US,
+                    "%-24s %8d %6.2f MHz %6.2f MHz %6.2f MHz %6.2fx  %s",
+                    programFile.getName(), stock.frames, stockMhz, cached.getExecutedMhz(),
+                    translatedMhz, (stockMhz > 0) ? translatedMhz / stockMhz : 0.0,
+                    (isMatched) ? "match" : "MISMATCH"));
+            if (!isMatched) {
+                ret = EXIT_ERROR;
+            }
+        }
+        return ret;
+    }
+
+    private int runWriteBenchmark() throws IOException {
+        File programFile = mProgramFiles.get(0);
+        File hexFile = prepareHexFile(programFile);
+        byte[] eeprom = prepareEeprom();
+        if (hexFile == null || eeprom == null) {
+            return EXIT_ERROR;
+        }
+        ArrayList<byte[]> movieFrames = new ArrayList<byte[]>();
+        if (emulate(hexFile, eeprom, mEngineFlags, false, movieFrames) == null) {
+            System.err.println("Failed to load " + programFile);
+            return EXIT_ERROR;
+        }
+
+        File gifFile = File.createTempFile("arby", ".gif");
+        gifFile.deleteOnExit();
+        ByteBuffer buffer = ByteBuffer.allocateDirect(ChannelOutputStream.DEFAULT_BUFFER_SIZE);
+        System.out.println(String.format(Locale.US, "%-20s %8s %10s %10s %10s",
+                "writer", "frames", "bytes", "writes", "speed"));
+        for (int type = 0; type < 2; type++) {
+            long bestTime = Long.MAX_VALUE;
+            long bytes = 0;
+            int writeCount = 0;
+            for (int round = 0; round < WRITE_BENCHMARK_ROUNDS; round++) {
+                OutputStream out;
+                if (type == 0) {
+                    out = new CountingOutputStream(new FileOutputStream(gifFile));
+                } else {
+                    out = new ChannelOutputStream(new FileOutputStream(gifFile).getChannel(), buffer);
+                }
+                long startTime = System.nanoTime();
+                GifEncoder gifEncoder = new GifEncoder();
+                gifEncoder.start(out, MOVIE_FPS);
+                byte[] lastFrame = null;
+                for (byte[] frame : movieFrames) {
+                    if (frame == lastFrame) {
+                        gifEncoder.addRepeatedFrame();
+                    } else {
+                        gifEncoder.addPackedFrame(frame);
+                    }
+                    lastFrame = frame;
+                }
+                if (!gifEncoder.finish(null)) {
+                    return EXIT_ERROR;
+                }
+                bestTime = Math.min(bestTime, System.nanoTime() - startTime);
+                bytes = gifFile.length();
+                writeCount = (type == 0) ? ((CountingOutputStream) out).writeCount
+                        : ((ChannelOutputStream) out).getWriteCount();
+            }
+            System.out.println(String.format(Locale.US, "%-20s %8d %10d %10d %6.2f MB/s",
+                    (type == 0) ? "FileOutputStream" : "ChannelOutputStream", movieFrames.size(),
+                    bytes, writeCount, bytes * (double) ONE_SECOND_NS / bestTime / 1024 / 1024));
+        }
+        gifFile.delete();
+        return EXIT_OK;
+    }
+
+    private int runVerify() throws IOException {
+        File programFile = mProgramFiles.get(0);
+        File hexFile = prepareHexFile(programFile);
+        byte[] eeprom = prepareEeprom();
+        if (hexFile == null || eeprom == null) {
+            return EXIT_ERROR;
+        }
+        int[] reference = null;
+        if (!mIsRecord) {
+            reference = readChecksums(mChecksumsFile);
+            if (reference == null) {
+                return EXIT_ERROR;
+            }
+        }
+
+        int saveFrame = mFrames / 2;
+        System.out.println(String.format(Locale.US, "%-10s %-9s %8s %-10s %s",
+                "engine", "busy skip", "frames", "checksums", "state at " + saveFrame));
+        boolean isMatched = true;
+        for (int engineIdx = 0; engineIdx < VERIFY_ENGINE_FLAGS.length; engineIdx++) {
+            for (int skip = 0; skip < 2; skip++) {
+                int engineFlags = VERIFY_ENGINE_FLAGS[engineIdx];
+                if (skip == 1) {
+                    engineFlags |= Native.FLAG_SKIP_BUSY_LOOP;
+                }
+                Result result = emulate(hexFile, eeprom, engineFlags, false, null, null, 0,
+                        saveFrame);
+                if (result == null) {
+                    System.err.println("Failed to load " + programFile);
+                    return EXIT_ERROR;
+                }
+                if (reference == null) {
+                    reference = result.checksums; // simavr without skipping
+                }
+                boolean isChecksumsMatched = Arrays.equals(reference, result.checksums);
+
+                /*  Continue from the state in a new instance  */
+                boolean isStateMatched = false;
+                if (result.state != null) {
+                    Result resumed = emulate(hexFile, eeprom, engineFlags, false, null,
+                            result.state, saveFrame, -1);
+                    isStateMatched = (resumed != null && resumed.frames == mFrames
+                            && result.frames == mFrames && Arrays.equals(
+                                    Arrays.copyOfRange(result.checksums, saveFrame, mFrames),
+                                    Arrays.copyOfRange(resumed.checksums, saveFrame, mFrames)));
+                }
+                System.out.println(String.format(Locale.US, "%-10s %-9s %8d %-10s %s",
+                        VERIFY_ENGINE_NAMES[engineIdx], (skip == 1) ? "on" : "off",
+                        result.frames, (isChecksumsMatched) ? "match" : "MISMATCH",
+                        (isStateMatched) ? "match" : "MISMATCH"));
+                isMatched &= isChecksumsMatched && isStateMatched;
+            }
+        }
+        if (!isMatched) {
+            return EXIT_ERROR;
+        }
+        if (mIsRecord) {
+            writeChecksums(mChecksumsFile, reference);
+            System.out.println("Recorded " + mChecksumsFile);
+        }
+        return EXIT_OK;
+    }
+
+    private File prepareHexFile(File programFile) throws IOException {
+        if (!programFile.getName().toLowerCase(Locale.US).endsWith(EXT_ARDUBOY)) {
+            return programFile;
+        }
+        File hexFile = File.createTempFile("arby", ".hex");
+        hexFile.deleteOnExit();
+        if (!ArduboyUtils.extractHexFromArduboy(programFile, hexFile)) {
+            System.err.println("Failed to extract hex from " + programFile);
+            return null;
+        }
+        return hexFile;
+    }
+
+    private byte[] prepareEeprom() throws IOException {
+        byte[] eeprom = new byte[EEPROM_SIZE];
+        if (mEepromFile != null) {
+            if (readFully(new FileInputStream(mEepromFile), eeprom) < EEPROM_SIZE) {
+                System.err.println("Too short EEPROM image " + mEepromFile);
+                return null;
+            }
+        } else {
+            Arrays.fill(eeprom, (byte) 0xFF);
+        }
+        return eeprom;
+    }
+
+    /**
+     * Emulates the program according to the timeline.
+     *
+     * @param engineFlags 0, Native.FLAG_PREDECODE or Native.FLAG_TRANSLATE.
+     * @param isOutput true to save frames listed in mCaptureFrames as GIF.
+     * @param movieFrames list to receive packed 1-bit pixels of every frame, or null.
+     *          The same array is added again while the screen is unchanged.
+     * @return the result, or null if the program couldn't be loaded.
+     */
+    private Result emulate(File hexFile, byte[] eeprom, int engineFlags, boolean isOutput,
+            ArrayList<byte[]> movieFrames) {
+        if (mIsBusyLoopSkip) {
+            engineFlags |= Native.FLAG_SKIP_BUSY_LOOP;
+        }
+        return emulate(hexFile, eeprom, engineFlags, isOutput, movieFrames, null, 0, -1);
+    }
+
+    /**
+     * Emulates the program according to the timeline, optionally from or into a state.
+     *
+     * @param engineFlags combination of Native.FLAG_PREDECODE, Native.FLAG_TRANSLATE and
+     *          Native.FLAG_SKIP_BUSY_LOOP.
+     * @param state state to start from, or null to start from reset.
+     * @param startFrame frame number at which the state was saved, or 0.
+     *          Checksums before startFrame are left 0.
+     * @param saveFrame frame number before which the state is saved into Result.state, or -1.
+     * @return the result, or null if the program or the state couldn't be loaded.
+     */
+    private Result emulate(File hexFile, byte[] eeprom, int engineFlags, boolean isOutput,
+            ArrayList<byte[]> movieFrames, byte[] state, int startFrame, int saveFrame) {
+        long handle = Native.setup(hexFile.getAbsolutePath(), mIsTuned);
+        if (handle == Native.NULL_HANDLE) {
+            return null;
+        }
+        ByteBuffer ctrl = ByteBuffer.allocateDirect(Native.CTRL_SIZE).order(ByteOrder.nativeOrder());
+        ctrl.position(Native.CTRL_PIXELS);
+        IntBuffer ctrlPixels = ctrl.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+        ctrl.position(Native.CTRL_BITS);
+        ctrl.limit(Native.CTRL_BITS + BITS_SIZE);
+        ByteBuffer ctrlBits = ctrl.slice();
+        ctrl.clear();
+        Native.setRefreshTiming(handle, mIsPostponeRefresh);
+        Native.setControlBlock(handle, ctrl);
+        Native.setEeprom(handle, eeprom);
+        if (state != null && !Native.loadState(handle, state)) {
+            Native.teardown(handle);
+            return null;
+        }
+        Map.Entry<Integer, Integer> entry = mTimeline.floorEntry(startFrame);
+        if (entry != null) {
+            ctrl.putInt(Native.CTRL_BUTTONS, entry.getValue());
+        }
+
+        GifEncoder gifEncoder = new GifEncoder();
+        int[] pixels = new int[PIXELS_SIZE];
+        Result result = new Result();
+        result.checksums = new int[mFrames];
+        int frame;
+        long startTime = System.nanoTime();
+        for (frame = startFrame; frame < mFrames; frame++) {
+            if (frame == saveFrame) {
+                result.state = new byte[Native.getStateSize(handle)];
+                if (!Native.saveState(handle, result.state)) {
+                    result.state = null;
+                }
+            }
+            Integer buttons = mTimeline.get(frame);
+            if (buttons != null) {
+                ctrl.putInt(Native.CTRL_BUTTONS, buttons);
+            }
+            boolean isCapture = isOutput && mCaptureFrames.contains(frame);
+            int flags = engineFlags;
+            if (isCapture) {
+                flags |= Native.FLAG_RENDER_PIXELS;
+            }
+            if (movieFrames != null) {
+                flags |= Native.FLAG_RENDER_BITS;
+            }
+            ctrl.putInt(Native.CTRL_FLAGS, flags);
+            long time = System.nanoTime();
+            Native.step(handle, 1);
+            result.stepTime += System.nanoTime() - time;
+            result.status = ctrl.getInt(Native.CTRL_STATUS);
+            if (result.status != Native.STATUS_RUNNING) {
+                break;
+            }
+            result.checksums[frame] = ctrl.getInt(Native.CTRL_HASH);
+            if (movieFrames != null) {
+                if (movieFrames.isEmpty() || ctrl.getInt(Native.CTRL_DIRTY) != 0) {
+                    byte[] bits = new byte[BITS_SIZE];
+                    ctrlBits.rewind();
+                    ctrlBits.get(bits);
+                    movieFrames.add(bits);
+                } else {
+                    movieFrames.add(movieFrames.get(movieFrames.size() - 1));
+                }
+            }
+            if (isCapture) {
+                ctrlPixels.rewind();
+                ctrlPixels.get(pixels);
+                File file = new File(mOutDir, String.format(Locale.US, FRAME_FILE_NAME_FORMAT, frame));
+                if (!gifEncoder.oneShot(file, pixels)) {
+                    System.err.println("Failed to write " + file);
+                }
+            }
+        }
+        result.totalTime = System.nanoTime() - startTime;
+        result.frames = frame;
+        result.checksums = Arrays.copyOf(result.checksums, frame);
+        result.cycles = ctrl.getLong(Native.CTRL_CYCLES);
+        result.idleCycles = ctrl.getLong(Native.CTRL_IDLE_CYCLES);
+        result.busyCycles = ctrl.getLong(Native.CTRL_BUSY_CYCLES);
+        result.eeprom = new byte[EEPROM_SIZE];
+        Native.getEeprom(handle, result.eeprom);
+        Native.teardown(handle);
+        return result;
+    }
+
+    private static void writeChecksums(File file, int[] checksums) throws IOException {
+        PrintWriter writer = new PrintWriter(file);
+        for (int i = 0; i < checksums.length; i++) {
+            writer.println(String.format(Locale.US, "%d %08x", i, checksums[i]));
+        }
+        writer.close();
+    }
+
+    /**
+     * Reads checksums in the format of writeChecksums().
+     *
+     * @return the checksums, or null if the file is invalid.
+     */
+    private static int[] readChecksums(File file) throws IOException {
+        ArrayList<Integer> checksums = new ArrayList<Integer>();
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+        } catch (FileNotFoundException e) {
+            System.err.println("Not found " + file + "; record it with -r");
+            return null;
+        }
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens.length != 2 || Integer.parseInt(tokens[0]) != checksums.size()) {
+                    System.err.println(file + ":" + (checksums.size() + 1) + ": Invalid line");
+                    return null;
+                }
+                checksums.add((int) Long.parseLong(tokens[1], 16));
+            }
+        } catch (NumberFormatException e) {
+            System.err.println(file + ":" + (checksums.size() + 1) + ": Invalid line");
+            return null;
+        } finally {
+            reader.close();
+        }
+        int[] ret = new int[checksums.size()];
+        for (int i = 0; i < ret.length; i++) {
+            ret[i] = checksums.get(i);
+        }
+        return ret;
+    }
+
+    private static void printStatistics(Result result) {
+        int frames = result.frames;
+        long cycles = result.cycles;
+        long idleCycles = result.idleCycles;
+        long busyCycles = result.busyCycles;
+        long stepTime = result.stepTime;
+        double seconds = (double) result.totalTime / ONE_SECOND_NS;
+        System.out.println(String.format(Locale.US, "status:   %s", statusToString(result.status)));
+        System.out.println(String.format(Locale.US, "frames:   %d", frames));
+        System.out.println(String.format(Locale.US, "cycles:   %d", cycles));
+        if (cycles > 0) {
+            System.out.println(String.format(Locale.US, "idle:     %d (%.1f%%)",
+                    idleCycles, idleCycles * 100.0 / cycles));
+            System.out.println(String.format(Locale.US, "busy:     %d (%.1f%%)",
+                    busyCycles, busyCycles * 100.0 / cycles));
+        }
+        System.out.println(String.format(Locale.US, "time:     %.3f s (native %.3f s)",
+                seconds, (double) stepTime / ONE_SECOND_NS));
+        if (seconds > 0) {
+            System.out.println(String.format(Locale.US, "speed:    %.1f fps, %.2f MHz (x%.2f)",
+                    frames / seconds, cycles / seconds / 1000000.0,
+                    cycles / seconds / CPU_CLOCK_HZ));
+        }
+    }
+
+    private static String statusToString(int status) {
+        switch (status) {
+        case Native.STATUS_RUNNING:
+            return "running";
+        case Native.STATUS_DONE:
+            return "done";
+        case Native.STATUS_CRASHED:
+            return "crashed";
+        default:
+            return "invalid";
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        try {
+            int readLength;
+            while (length < buffer.length
+                    && (readLength = in.read(buffer, length, buffer.length - length)) >= 0) {
+                length += readLength;
+            }
+        } finally {
+            in.close();
+        }
+        return length;
+    }
+
+}
@@ -31,18 +31,27 @@ import android.content.Intent;
 import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.text.format.DateFormat;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.view.MotionEvent;
 import android.view.View;
 import android.widget.AdapterView;
+import android.widget.Button;
 import android.widget.ImageButton;
 import android.widget.RelativeLayout;
 import android.widget.Spinner;
+import android.widget.TextView;
 
 public class MainActivity extends Activity {
 
     private static final int REQUEST_OPEN_FLASH = 1;
     private static final String FLASH_WORK_FILE_NAME = "work.hex";
+    private static final int[] TURBO_MULTIPLIERS = new int[] {
+            ArduboyEmulator.TURBO_OFF, 2, 4, 8, ArduboyEmulator.TURBO_MAX
+    };
+    private static final int FPS_REFRESH_INTERVAL = 500;
 
     private MyApplication       mApp;
     private ArduboyEmulator     mArduboyEmulator;
@@ -50,7 +59,19 @@ public class MainActivity extends Activity {
     private RelativeLayout      mLayoutToolbar;
     private Spinner             mSpinnerToolFps;
     private ImageButton         mButtonToolCaptureMovie;
+    private Button              mButtonToolTurbo;
+    private Button              mButtonToolRewind;
+    private TextView            mTextToolFps;
     private String              mCurrentPath;
+    private int                 mTurboIdx;
+    private Handler             mHandler = new Handler();
+    private Runnable            mFpsRefresher = new Runnable() {
+        @Override
+        public void run() {
+            refreshAchievedFps();
+            mHandler.postDelayed(this, FPS_REFRESH_INTERVAL);
+        }
+    };
 
     /*-----------------------------------------------------------------------*/
 
@@ -65,6 +86,14 @@ public class MainActivity extends Activity {
         mLayoutToolbar = (RelativeLayout) findViewById(R.id.relativeLayoutToolBar);
         mSpinnerToolFps = (Spinner) findViewById(R.id.spinnerToolFps);
         mButtonToolCaptureMovie = (ImageButton) findViewById(R.id.buttonToolCaptureMovie);
+        mButtonToolTurbo = (Button) findViewById(R.id.buttonToolTurbo);
+        mButtonToolRewind = (Button) findViewById(R.id.buttonToolRewind);
+        mTextToolFps = (TextView) findViewById(R.id.textToolFps);
+        for (int i = 0; i < TURBO_MULTIPLIERS.length; i++) {
+            if (TURBO_MULTIPLIERS[i] == mArduboyEmulator.getTurbo()) {
+                mTurboIdx = i;
+            }
+        }
 
         mSpinnerToolFps.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
             @Override
@@ -78,6 +107,22 @@ public class MainActivity extends Activity {
             }
         });
 
+        mButtonToolRewind.setOnTouchListener(new View.OnTouchListener() {
+            @Override
+            public boolean onTouch(View v, MotionEvent event) {
+                switch (event.getActionMasked()) {
+                case MotionEvent.ACTION_DOWN:
+                    mArduboyEmulator.setRewinding(true);
+                    break;
+                case MotionEvent.ACTION_UP:
+                case MotionEvent.ACTION_CANCEL:
+                    mArduboyEmulator.setRewinding(false);
+                    break;
+                }
+                return false; // let the button show its pressed state
+            }
+        });
+
         Intent intent = getIntent();
         if (intent != null) {
             handleIntent(intent);
@@ -95,6 +140,12 @@ public class MainActivity extends Activity {
         return super.onCreateOptionsMenu(menu);
     }
 
+    @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        menu.findItem(R.id.menuMainSaveReplay).setVisible(mArduboyEmulator.isReplayEnabled());
+        return super.onPrepareOptionsMenu(menu);
+    }
+
     @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
@@ -106,6 +157,17 @@ public class MainActivity extends Activity {
             intent.putExtra(FilePickerActivity.INTENT_EXTRA_DIRECTORY, mApp.getPathFlash());
             startActivityForResult(intent, REQUEST_OPEN_FLASH);
             return true;
+        case R.id.menuMainSaveState:
+            showStateSlots(true);
+            return true;
+        case R.id.menuMainLoadState:
+            showStateSlots(false);
+            return true;
+        case R.id.menuMainSaveReplay:
+            if (mArduboyEmulator.isEmulating()) {
+                mArduboyEmulator.saveReplay();
+            }
+            return true;
         case R.id.menuMainEeprom:
             startActivity(new Intent(this, EepromActivity.class));
             return true;
@@ -146,9 +208,11 @@ public class MainActivity extends Activity {
 
     @Override
     protected void onPause() {
+        mHandler.removeCallbacks(mFpsRefresher);
         if (mArduboyEmulator.isCapturing()) {
             mArduboyEmulator.stopCapturing();
         }
+        mArduboyEmulator.setRewinding(false);
         mArduboyEmulator.stopEmulation();
         super.onPause();
     }
@@ -159,8 +223,19 @@ public class MainActivity extends Activity {
         mLayoutToolbar.setVisibility((mApp.getShowToolbar()) ? View.VISIBLE : View.INVISIBLE);
         mSpinnerToolFps.setSelection(mApp.getEmulationFpsItemPos(), false);
         refreshCaptureVideoButtonColor();
+        refreshTurboButton();
+        mArduboyEmulator.setInterpreter(mApp.getEmulationInterpreter());
+        mArduboyEmulator.setRewindMemory(mApp.getRewindMemory());
+        mArduboyEmulator.setCapturePolicy(mApp.getCapturePolicy());
+        mArduboyEmulator.setCaptureRaw(mApp.getCaptureRaw());
+        mArduboyEmulator.setCaptureFormat(mApp.getCaptureFormat());
+        mArduboyEmulator.setPngCompressionLevel(mApp.getPngCompressionLevel());
+        mArduboyEmulator.setReplaySeconds(mApp.getReplaySeconds());
+        mButtonToolRewind.setVisibility(
+                (mArduboyEmulator.isRewindEnabled()) ? View.VISIBLE : View.GONE);
         mArduboyEmulator.bindEmulatorView(mEmulatorScreenView);
         mArduboyEmulator.startEmulation();
+        mHandler.post(mFpsRefresher);
     }
 
     @Override
@@ -195,6 +270,12 @@ public class MainActivity extends Activity {
         }
     }
 
+    public void onClickTurbo(View v) {
+        mTurboIdx = (mTurboIdx + 1) % TURBO_MULTIPLIERS.length;
+        mArduboyEmulator.setTurbo(TURBO_MULTIPLIERS[mTurboIdx]);
+        refreshTurboButton();
+    }
+
     /*-----------------------------------------------------------------------*/
 
     private void startEmulation(String path) {
@@ -207,6 +288,7 @@ public class MainActivity extends Activity {
                 path = null;
             }
         }
+        mArduboyEmulator.setBootSkip(mApp.getBootSkip());
         if (path != null && mArduboyEmulator.initializeEmulation(path)) {
             mCurrentPath = path;
             mArduboyEmulator.startEmulation();
@@ -257,6 +339,49 @@ public class MainActivity extends Activity {
         }
     }
 
+    private void showStateSlots(final boolean isSave) {
+        if (mCurrentPath == null) {
+            return;
+        }
+        String[] items = new String[ArduboyEmulator.STATE_SLOTS];
+        for (int slot = 0; slot < ArduboyEmulator.STATE_SLOTS; slot++) {
+            long time = mArduboyEmulator.getStateSlotTime(slot);
+            String label = (time == 0) ? getString(R.string.messageStateEmpty) :
+                    DateFormat.getDateFormat(this).format(time) + " " +
+                    DateFormat.getTimeFormat(this).format(time);
+            items[slot] = getString(R.string.messageStateSlot, slot + 1, label);
+        }
+        Utils.showListDialog(this, 0, (isSave) ? R.string.menuSaveState : R.string.menuLoadState,
+                items, new OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        if (isSave) {
+                            Utils.showToast(MainActivity.this,
+                                    (mArduboyEmulator.saveStateSlot(which)) ?
+                                    R.string.messageSaveSucceeded : R.string.messageSaveFailed);
+                        } else {
+                            Utils.showToast(MainActivity.this,
+                                    (mArduboyEmulator.loadStateSlot(which)) ?
+                                    R.string.messageLoadSucceeded : R.string.messageLoadFailed);
+                        }
+                    }
+        });
+    }
+
+    private void refreshTurboButton() {
+        String[] entries = getResources().getStringArray(R.array.entriesTurbo);
+        mButtonToolTurbo.setText(entries[mTurboIdx]);
+    }
+
+    private void refreshAchievedFps() {
+        if (mArduboyEmulator.isEmulating()) {
+            mTextToolFps.setText(String.format(Locale.getDefault(),
+                    getString(R.string.messageAchievedFps), mArduboyEmulator.getAchievedFps()));
+        } else {
+            mTextToolFps.setText(null);
+        }
+    }
+
     private void refreshCaptureVideoButtonColor() {
         if (mArduboyEmulator.isEmulating()) {
             if (mArduboyEmulator.isCapturing()) {
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.io.File;
+
+/**
+ * Encodes packed 1-bit screens into an animated image file; GIF or APNG.
+ */
+public interface MovieEncoder {
+
+    /**
+     * Starts writing into the work file.
+     *
+     * @param fps the number of frames per second which are added.
+     * @return false if initial write failed.
+     */
+    boolean start(File workFile, int fps);
+
+    /**
+     * Adds next frame from packed 1-bit pixels, which are row-major and the leftmost
+     * pixel is the MSB of each byte.
+     */
+    boolean addPackedFrame(byte[] packedPixels);
+
+    /**
+     * Adds the same image as the previous frame again, which only extends its delay.
+     */
+    boolean addRepeatedFrame();
+
+    /**
+     * Flushes any pending data and renames the work file to the specified file.
+     */
+    boolean finish(File file);
+
+}
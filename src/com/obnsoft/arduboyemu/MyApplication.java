@@ -37,6 +37,14 @@ public class MyApplication extends Application {
     private static final String PREFS_KEY_FPS           = "fps";
     private static final String PREFS_KEY_REFRESH       = "refresh";
     private static final String PREFS_KEY_TUNING        = "tuning";
+    private static final String PREFS_KEY_INTERPRETER   = "interpreter";
+    private static final String PREFS_KEY_REWIND        = "rewind";
+    private static final String PREFS_KEY_BOOTSKIP      = "boot_skip";
+    private static final String PREFS_KEY_CAPTURE       = "capture_policy";
+    private static final String PREFS_KEY_CAPTURE_RAW   = "capture_raw";
+    private static final String PREFS_KEY_CAPTURE_FORMAT = "capture_format";
+    private static final String PREFS_KEY_PNG_LEVEL     = "png_level";
+    private static final String PREFS_KEY_REPLAY        = "replay";
     private static final String PREFS_KEY_CONFIRMQUIT   = "confirm_quit";
     private static final String PREFS_KEY_PATH_FLASH    = "path_flash";
     private static final String PREFS_KEY_PATH_EEPROM   = "path_eeprom";
@@ -45,6 +53,14 @@ public class MyApplication extends Application {
     private static final String PREFS_DEFAULT_FPS       = "60";
     private static final boolean PREFS_DEFAULT_REFRESH  = false;
     private static final boolean PREFS_DEFAULT_TUNING   = false;
+    private static final String PREFS_DEFAULT_INTERPRETER = "0";
+    private static final String PREFS_DEFAULT_REWIND    = "8";
+    private static final boolean PREFS_DEFAULT_BOOTSKIP = false;
+    private static final String PREFS_DEFAULT_CAPTURE   = "2";
+    private static final boolean PREFS_DEFAULT_CAPTURE_RAW = false;
+    private static final String PREFS_DEFAULT_CAPTURE_FORMAT = "0";
+    private static final String PREFS_DEFAULT_PNG_LEVEL = "-1";
+    private static final String PREFS_DEFAULT_REPLAY    = "30";
     private static final boolean PREFS_DEFAULT_CONFIRMQUIT = true;
 
     private ArduboyEmulator     mArduboyEmulator;
@@ -123,6 +139,65 @@ public class MyApplication extends Application {
         return getSharedPreferences().getBoolean(PREFS_KEY_TUNING, PREFS_DEFAULT_TUNING);
     }
 
+    /**
+     * @return one of ArduboyEmulator.INTERPRETER_*.
+     */
+    public int getEmulationInterpreter() {
+        String value = getSharedPreferences().getString(
+                PREFS_KEY_INTERPRETER, PREFS_DEFAULT_INTERPRETER);
+        return Integer.parseInt(value);
+    }
+
+    public boolean getBootSkip() {
+        return getSharedPreferences().getBoolean(PREFS_KEY_BOOTSKIP, PREFS_DEFAULT_BOOTSKIP);
+    }
+
+    /**
+     * @return memory budget of the rewind buffer in bytes, or 0 if rewinding is disabled.
+     */
+    public int getRewindMemory() {
+        String value = getSharedPreferences().getString(PREFS_KEY_REWIND, PREFS_DEFAULT_REWIND);
+        return Integer.parseInt(value) * 1024 * 1024;
+    }
+
+    /**
+     * @return one of CaptureRecorder.POLICY_*.
+     */
+    public int getCapturePolicy() {
+        String value = getSharedPreferences().getString(PREFS_KEY_CAPTURE, PREFS_DEFAULT_CAPTURE);
+        return Integer.parseInt(value);
+    }
+
+    public boolean getCaptureRaw() {
+        return getSharedPreferences().getBoolean(PREFS_KEY_CAPTURE_RAW, PREFS_DEFAULT_CAPTURE_RAW);
+    }
+
+    /**
+     * @return one of ArduboyEmulator.CAPTURE_FORMAT_*.
+     */
+    public int getCaptureFormat() {
+        String value = getSharedPreferences().getString(
+                PREFS_KEY_CAPTURE_FORMAT, PREFS_DEFAULT_CAPTURE_FORMAT);
+        return Integer.parseInt(value);
+    }
+
+    /**
+     * @return compression level of PNG for java.util.zip.Deflater.
+     */
+    public int getPngCompressionLevel() {
+        String value = getSharedPreferences().getString(
+                PREFS_KEY_PNG_LEVEL, PREFS_DEFAULT_PNG_LEVEL);
+        return Integer.parseInt(value);
+    }
+
+    /**
+     * @return length of instant replay in seconds, or 0 if it is disabled.
+     */
+    public int getReplaySeconds() {
+        String value = getSharedPreferences().getString(PREFS_KEY_REPLAY, PREFS_DEFAULT_REPLAY);
+        return Integer.parseInt(value);
+    }
+
     public boolean getConfirmQuit() {
         return getSharedPreferences().getBoolean(PREFS_KEY_CONFIRMQUIT, PREFS_DEFAULT_CONFIRMQUIT);
     }
@@ -18,6 +18,10 @@
 
 package com.obnsoft.arduboyemu;
 
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+
 public class Native {
 
     public static final int BUTTON_UP   = 0;
@@ -28,16 +32,51 @@ public class Native {
     public static final int BUTTON_B    = 5;
     public static final int BUTTON_MAX  = 6;
 
+    public static final int STATUS_RUNNING  = 0;
+    public static final int STATUS_DONE     = 1;
+    public static final int STATUS_CRASHED  = 2;
+    public static final int STATUS_INVALID  = 3;
+
+    public static final int FLAG_RENDER_PIXELS  = 1;
+    public static final int FLAG_SKIP_BUSY_LOOP = 2;
+    public static final int FLAG_PREDECODE      = 4;
+    public static final int FLAG_TRANSLATE      = 8;
+    public static final int FLAG_RENDER_BITS    = 16;
+
+    /*  Layout of control block (must match struct arduboy_avr_ctrl)  */
+    public static final int CTRL_BUTTONS    = 0;    // int, bitmask of pressed buttons
+    public static final int CTRL_FLAGS      = 4;    // int, FLAG_*
+    public static final int CTRL_STATUS     = 8;    // int, STATUS_*
+    public static final int CTRL_LEDS       = 12;   // int[5], red, green, blue, rx, tx
+    public static final int CTRL_FRAMES     = 32;   // int, emulated frames
+    public static final int CTRL_CYCLES     = 40;   // long, AVR cycle count
+    public static final int CTRL_DIRTY      = 48;   // int, non-zero if screen has changed
+    public static final int CTRL_HASH       = 52;   // int, hash of screen contents
+    public static final int CTRL_IDLE_CYCLES= 56;   // long, AVR cycles skipped while sleeping
+    public static final int CTRL_BUSY_CYCLES= 64;   // long, AVR cycles skipped in busy-wait loops
+    public static final int CTRL_BITS       = 72;   // byte[128*64/8], 1-bit pixels, MSB first
+    public static final int CTRL_PIXELS     = 1096; // int[128*64], ARGB pixels
+    public static final int CTRL_SIZE       = CTRL_PIXELS + 128 * 64 * 4;
+
     static {
         System.loadLibrary("ArduboyEmulatorNative");
     }
 
-    public static native boolean setup(String hexFilePath, boolean isTuned);
-    public static native boolean getEeprom(byte[] ary);
-    public static native boolean setEeprom(byte[] ary);
-    public static native boolean setRefreshTiming(boolean isPostpone);
-    public static native boolean buttonEvent(int key, boolean isPress);
-    public static native boolean loop(int[] pixels);
-    public static native boolean getLedState(int[] leds);
-    public static native void teardown();
+    public static final long NULL_HANDLE    = 0;
+
+    /*  Each handle returned by setup() owns an independent emulator instance  */
+    public static native long setup(String hexFilePath, boolean isTuned);
+    public static native boolean getEeprom(long handle, byte[] ary);
+    public static native boolean setEeprom(long handle, byte[] ary);
+    public static native boolean setRefreshTiming(long handle, boolean isPostpone);
+    public static native boolean buttonEvent(long handle, int key, boolean isPress);
+    public static native boolean loop(long handle, int[] pixels);
+    public static native boolean getLedState(long handle, int[] leds);
+    public static native boolean setControlBlock(long handle, ByteBuffer buffer);
+    public static native boolean step(long handle, int frames);
+    public static native boolean renderBitmap(long handle, Bitmap bitmap);
+    public static native int getStateSize(long handle);
+    public static native boolean saveState(long handle, byte[] state);
+    public static native boolean loadState(long handle, byte[] state);
+    public static native void teardown(long handle);
 }
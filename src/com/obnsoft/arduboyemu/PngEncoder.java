@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes 1-bit indexed PNG screenshots and APNG animations. Packed 1-bit pixels are
+ * exactly the scanlines of such PNG, so no color analysis is needed. The deflater and
+ * all buffers are reused for every image.
+ */
+public class PngEncoder implements MovieEncoder {
+
+    private static final int WIDTH = 128;
+    private static final int HEIGHT = 64;
+    private static final int ROW_BYTES = WIDTH / 8;
+    private static final int BITS_SIZE = ROW_BYTES * HEIGHT;
+    private static final int RAW_SIZE = (ROW_BYTES + 1) * HEIGHT; // with filter type bytes
+    private static final int MIN_DELAY_MS = 20; // same as GIF, shorter delays may be slowed
+    private static final int MAX_DELAY_MS = 0xFFFF;
+
+    private static final byte[] SIGNATURE = new byte[] { -119, 'P', 'N', 'G', 13, 10, 26, 10 };
+    private static final byte[] PALETTE = new byte[] { 0, 0, 0, -1, -1, -1 };
+    private static final byte[] TYPE_IHDR = new byte[] { 'I', 'H', 'D', 'R' };
+    private static final byte[] TYPE_PLTE = new byte[] { 'P', 'L', 'T', 'E' };
+    private static final byte[] TYPE_IDAT = new byte[] { 'I', 'D', 'A', 'T' };
+    private static final byte[] TYPE_IEND = new byte[] { 'I', 'E', 'N', 'D' };
+    private static final byte[] TYPE_ACTL = new byte[] { 'a', 'c', 'T', 'L' };
+    private static final byte[] TYPE_FCTL = new byte[] { 'f', 'c', 'T', 'L' };
+    private static final byte[] TYPE_FDAT = new byte[] { 'f', 'd', 'A', 'T' };
+
+    private static final int CHUNK_OVERHEAD = 12; // length, type and CRC
+    private static final int IHDR_SIZE = 13;
+    private static final int ACTL_SIZE = 8;
+    private static final int FCTL_SIZE = 26;
+    private static final int ACTL_POSITION = SIGNATURE.length       // after IHDR and PLTE
+            + CHUNK_OVERHEAD + IHDR_SIZE + CHUNK_OVERHEAD + PALETTE.length;
+
+    private Deflater    mDeflater; // reused for every image, and released by finish()
+    private int         mCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private CRC32       mCrc = new CRC32();
+    private ByteBuffer  mWriteBuffer; // reused for every file
+    private byte[]      mChunkHeader = new byte[8];
+    private byte[]      mChunkData = new byte[FCTL_SIZE];
+    private byte[]      mRawData = new byte[RAW_SIZE];
+    private byte[]      mDeflated = new byte[RAW_SIZE + 64]; // 4 bytes ahead for fdAT
+
+    private File        mWorkFile;
+    private FileChannel mWorkChannel;
+    private OutputStream mWorkStream;
+    private boolean     mIsStarted;
+    private int         mFps;
+    private byte[]      mPendingBits = new byte[BITS_SIZE]; // image which is not written yet
+    private byte[]      mCanvasBits = new byte[BITS_SIZE]; // image after written frames
+    private int         mPendingFrames; // frames covered by the image which is not written yet
+    private long        mWrittenFrames;
+    private long        mWrittenDelay; // milliseconds
+    private int         mFrameCount; // number of APNG frames written
+    private int         mSequence;
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * Sets the compression level from Deflater.BEST_SPEED to Deflater.BEST_COMPRESSION,
+     * or Deflater.DEFAULT_COMPRESSION. It is applied from the next image.
+     */
+    public void setCompressionLevel(int level) {
+        mCompressionLevel = level;
+        if (mDeflater != null) {
+            mDeflater.setLevel(level);
+        }
+    }
+
+    /**
+     * Frees the native memory of the compressor. It is allocated again when needed.
+     */
+    public void release() {
+        if (mDeflater != null) {
+            mDeflater.end();
+            mDeflater = null;
+        }
+    }
+
+    /**
+     * Writes a still image.
+     *
+     * @param packedPixels packed 1-bit pixels, row-major and MSB first.
+     */
+    public boolean oneShot(File file, byte[] packedPixels) {
+        if (packedPixels == null || packedPixels.length != BITS_SIZE) {
+            return false;
+        }
+        try {
+            OutputStream out = openStream(file);
+            try {
+                writeHeader(out);
+                int length = deflateRegion(packedPixels, 0, 0, ROW_BYTES, HEIGHT);
+                writeChunk(out, TYPE_IDAT, mDeflated, 4, length);
+                writeChunk(out, TYPE_IEND, mChunkData, 0, 0);
+            } finally {
+                out.close();
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            file.delete();
+            return false;
+        } finally {
+            mWorkChannel = null;
+        }
+    }
+
+    @Override
+    public boolean start(File workFile, int fps) {
+        if (mIsStarted) {
+            return false;
+        }
+        try {
+            mWorkStream = openStream(workFile);
+            writeHeader(mWorkStream);
+            writeAnimationControl(mWorkStream, 0); // the number of frames is fixed later
+            mWorkFile = workFile;
+            mIsStarted = true;
+            mFps = Math.max(fps, 1);
+            mPendingFrames = 0;
+            mWrittenFrames = 0;
+            mWrittenDelay = 0;
+            mFrameCount = 0;
+            mSequence = 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            closeQuietly();
+        }
+        return mIsStarted;
+    }
+
+    /**
+     * Adds next frame. It is deferred until a different frame is received so that its
+     * delay is known, and identical frames in a row are merged into one image.
+     */
+    @Override
+    public boolean addPackedFrame(byte[] packedPixels) {
+        if (!mIsStarted || packedPixels == null || packedPixels.length != BITS_SIZE) {
+            return false;
+        }
+        if (mPendingFrames > 0) {
+            if (Arrays.equals(packedPixels, mPendingBits)) {
+                mPendingFrames++;
+                return true;
+            }
+            int delay = getPendingDelay();
+            if (delay * 2 >= MIN_DELAY_MS) { // may run ahead of the elapsed time by half at most
+                try {
+                    writePendingFrame(mWorkStream, Math.max(delay, MIN_DELAY_MS));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return false;
+                }
+            } // otherwise the pending image is replaced and its time is carried over
+        }
+        System.arraycopy(packedPixels, 0, mPendingBits, 0, BITS_SIZE);
+        mPendingFrames++;
+        return true;
+    }
+
+    @Override
+    public boolean addRepeatedFrame() {
+        if (!mIsStarted || mPendingFrames == 0) {
+            return false;
+        }
+        mPendingFrames++;
+        return true;
+    }
+
+    @Override
+    public boolean finish(File file) {
+        if (!mIsStarted) {
+            return false;
+        }
+        boolean ret = false;
+        try {
+            if (mPendingFrames > 0) {
+                writePendingFrame(mWorkStream, Math.max(getPendingDelay(), MIN_DELAY_MS));
+            }
+            if (mFrameCount > 0) {
+                writeChunk(mWorkStream, TYPE_IEND, mChunkData, 0, 0);
+                mWorkStream.flush();
+                patchAnimationControl();
+                mWorkStream.close();
+                mWorkFile.renameTo(file);
+                ret = true;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (!ret) {
+            closeQuietly();
+            mWorkFile.delete();
+        }
+        mWorkFile = null;
+        mWorkChannel = null;
+        mWorkStream = null;
+        mIsStarted = false;
+        release(); // a movie encoder is usually used once
+        return ret;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private OutputStream openStream(File file) throws IOException {
+        if (mWriteBuffer == null) {
+            mWriteBuffer = ByteBuffer.allocateDirect(ChannelOutputStream.DEFAULT_BUFFER_SIZE);
+        }
+        mWorkChannel = new FileOutputStream(file).getChannel();
+        return new ChannelOutputStream(mWorkChannel, mWriteBuffer);
+    }
+
+    private void closeQuietly() {
+        try {
+            if (mWorkStream != null) {
+                mWorkStream.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Calculates the delay of the pending image so that the total delay follows the
+     * elapsed time of frames, which carries the rounding error over to the next image.
+     */
+    private int getPendingDelay() {
+        long frames = mWrittenFrames + mPendingFrames;
+        long totalDelay = (frames * 2000 + mFps) / (mFps * 2); // rounded
+        return (int) (totalDelay - mWrittenDelay);
+    }
+
+    /**
+     * Writes the pending image as a frame with the specified delay. Only the byte-aligned
+     * bounding box of changed pixels is written except the first frame, which is the default
+     * image as well.
+     */
+    private void writePendingFrame(OutputStream out, int delay) throws IOException {
+        int left = 0, top = 0, right = ROW_BYTES, bottom = HEIGHT;
+        if (mFrameCount > 0) {
+            left = ROW_BYTES;
+            top = HEIGHT;
+            right = 0;
+            bottom = 0;
+            for (int y = 0, i = 0; y < HEIGHT; y++) {
+                for (int x = 0; x < ROW_BYTES; x++, i++) {
+                    if (mPendingBits[i] != mCanvasBits[i]) {
+                        left = Math.min(left, x);
+                        right = Math.max(right, x + 1);
+                        top = Math.min(top, y);
+                        bottom = y + 1;
+                    }
+                }
+            }
+            if (right == 0) {
+                left = 0; // no change, but a frame is needed for timing
+                top = 0;
+                right = 1;
+                bottom = 1;
+            }
+        }
+        System.arraycopy(mPendingBits, 0, mCanvasBits, 0, BITS_SIZE);
+        mWrittenFrames += mPendingFrames;
+        mWrittenDelay += delay;
+        mPendingFrames = 0;
+        writeFrame(out, left, top, right, bottom, Math.min(delay, MAX_DELAY_MS));
+        for (delay -= MAX_DELAY_MS; delay > 0; delay -= MAX_DELAY_MS) {
+            writeFrame(out, 0, 0, 1, 1, Math.min(delay, MAX_DELAY_MS)); // no change
+        }
+    }
+
+    /**
+     * Writes Frame Control chunk and the image data of the region in bytes.
+     */
+    private void writeFrame(OutputStream out, int left, int top, int right, int bottom,
+            int delay) throws IOException {
+        byte[] data = mChunkData;
+        putInt(data, 0, mSequence++);
+        putInt(data, 4, (right - left) * 8); // width
+        putInt(data, 8, bottom - top); // height
+        putInt(data, 12, left * 8); // x offset
+        putInt(data, 16, top); // y offset
+        putShort(data, 20, delay); // milliseconds
+        putShort(data, 22, 1000);
+        data[24] = 0; // dispose_op = APNG_DISPOSE_OP_NONE
+        data[25] = 0; // blend_op = APNG_BLEND_OP_SOURCE
+        writeChunk(out, TYPE_FCTL, data, 0, FCTL_SIZE);
+
+        int length = deflateRegion(mCanvasBits, left, top, right, bottom);
+        if (mFrameCount == 0) {
+            writeChunk(out, TYPE_IDAT, mDeflated, 4, length);
+        } else {
+            putInt(mDeflated, 0, mSequence++);
+            writeChunk(out, TYPE_FDAT, mDeflated, 0, length + 4);
+        }
+        mFrameCount++;
+    }
+
+    /**
+     * Compresses the region into mDeflated after 4 bytes for the sequence number.
+     *
+     * @return the length of compressed data.
+     */
+    private int deflateRegion(byte[] bits, int left, int top, int right, int bottom) {
+        int width = right - left;
+        int length = 0;
+        for (int y = top; y < bottom; y++) {
+            mRawData[length++] = 0; // filter type None, which suits 1-bit images
+            System.arraycopy(bits, y * ROW_BYTES + left, mRawData, length, width);
+            length += width;
+        }
+        if (mDeflater == null) {
+            mDeflater = new Deflater(mCompressionLevel);
+        }
+        Deflater deflater = mDeflater;
+        deflater.reset();
+        deflater.setInput(mRawData, 0, length);
+        deflater.finish();
+        int deflatedLength = 4;
+        while (!deflater.finished()) {
+            if (deflatedLength == mDeflated.length) {
+                mDeflated = Arrays.copyOf(mDeflated, mDeflated.length * 2);
+            }
+            deflatedLength += deflater.deflate(mDeflated, deflatedLength,
+                    mDeflated.length - deflatedLength);
+        }
+        return deflatedLength - 4;
+    }
+
+    /**
+     * Writes PNG signature, Image Header and Palette.
+     */
+    private void writeHeader(OutputStream out) throws IOException {
+        out.write(SIGNATURE);
+        byte[] data = mChunkData;
+        putInt(data, 0, WIDTH);
+        putInt(data, 4, HEIGHT);
+        data[8] = 1; // bit depth
+        data[9] = 3; // color type = indexed color
+        data[10] = 0; // compression method = deflate
+        data[11] = 0; // filter method = adaptive
+        data[12] = 0; // interlace method = none
+        writeChunk(out, TYPE_IHDR, data, 0, IHDR_SIZE);
+        writeChunk(out, TYPE_PLTE, PALETTE, 0, PALETTE.length);
+    }
+
+    /**
+     * Writes Animation Control, which must precede the image data.
+     */
+    private void writeAnimationControl(OutputStream out, int frameCount) throws IOException {
+        byte[] data = mChunkData;
+        putInt(data, 0, frameCount); // num_frames
+        putInt(data, 4, 0); // num_plays = 0 (eternal)
+        writeChunk(out, TYPE_ACTL, data, 0, ACTL_SIZE);
+    }
+
+    /**
+     * Rewrites Animation Control with the actual number of frames.
+     */
+    private void patchAnimationControl() throws IOException {
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK_OVERHEAD + ACTL_SIZE);
+        writeAnimationControl(chunk, mFrameCount);
+        ByteBuffer buffer = ByteBuffer.wrap(chunk.toByteArray());
+        long position = ACTL_POSITION;
+        while (buffer.hasRemaining()) {
+            position += mWorkChannel.write(buffer, position);
+        }
+    }
+
+    private void writeChunk(OutputStream out, byte[] type, byte[] data, int offset, int length)
+            throws IOException {
+        putInt(mChunkHeader, 0, length);
+        System.arraycopy(type, 0, mChunkHeader, 4, 4);
+        out.write(mChunkHeader, 0, 8);
+        out.write(data, offset, length);
+        CRC32 crc = mCrc;
+        crc.reset();
+        crc.update(type);
+        crc.update(data, offset, length);
+        putInt(mChunkHeader, 0, (int) crc.getValue());
+        out.write(mChunkHeader, 0, 4);
+    }
+
+    private static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >> 24);
+        buffer[offset + 1] = (byte) (value >> 16);
+        buffer[offset + 2] = (byte) (value >> 8);
+        buffer[offset + 3] = (byte) value;
+    }
+
+    private static void putShort(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) (value >> 8);
+        buffer[offset + 1] = (byte) value;
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps the last frames of the screen for instant replay. All images are stored in one
+ * array allocated at construction, so adding a frame costs one copy of packed 1-bit pixels
+ * at most, and nothing if the screen isn't changed.
+ */
+public class ReplayBuffer {
+
+    private byte[]      mImages;
+    private int[]       mDurations;     // number of frames each image lasts
+    private int         mFrameSize;
+    private int         mMaxFrames;
+    private int         mHead;
+    private int         mCount;
+    private int         mTotalFrames;
+
+    /*-----------------------------------------------------------------------*/
+
+    /**
+     * @param maxFrames the number of frames to keep, which bounds the memory as well.
+     */
+    public ReplayBuffer(int maxFrames, int frameSize) {
+        mMaxFrames = Math.max(maxFrames, 1);
+        mFrameSize = frameSize;
+        mImages = new byte[mMaxFrames * frameSize];
+        mDurations = new int[mMaxFrames];
+    }
+
+    public int getMaxFrames() {
+        return mMaxFrames;
+    }
+
+    public synchronized int getFrameCount() {
+        return mTotalFrames;
+    }
+
+    public synchronized void clear() {
+        mHead = 0;
+        mCount = 0;
+        mTotalFrames = 0;
+    }
+
+    /**
+     * Adds a new image which lasts the specified number of frames. Called from the
+     * emulation thread.
+     *
+     * @param bits packed 1-bit pixels from its current position to the limit.
+     */
+    public synchronized void addFrame(ByteBuffer bits, int frames) {
+        if (frames <= 0) {
+            return;
+        }
+        if (mCount == mMaxFrames) {
+            dropHead();
+        }
+        int index = (mHead + mCount) % mMaxFrames;
+        bits.get(mImages, index * mFrameSize, mFrameSize);
+        mDurations[index] = 0;
+        mCount++;
+        extendTail(frames);
+    }
+
+    /**
+     * Extends the latest image by the specified number of frames without copying it.
+     *
+     * @return false if no image has been added yet.
+     */
+    public synchronized boolean addRepeatedFrame(int frames) {
+        if (mCount == 0) {
+            return false;
+        }
+        if (frames > 0) {
+            extendTail(frames);
+        }
+        return true;
+    }
+
+    /**
+     * Copies the current content in chronological order. The buffer keeps working while
+     * the copy is encoded, so the lock is held only during the copy.
+     *
+     * @param images at least getMaxFrames() * frameSize bytes.
+     * @param durations at least getMaxFrames() elements.
+     * @return the number of images copied.
+     */
+    public synchronized int copyTo(byte[] images, int[] durations) {
+        int first = Math.min(mCount, mMaxFrames - mHead);
+        System.arraycopy(mImages, mHead * mFrameSize, images, 0, first * mFrameSize);
+        System.arraycopy(mImages, 0, images, first * mFrameSize, (mCount - first) * mFrameSize);
+        System.arraycopy(mDurations, mHead, durations, 0, first);
+        System.arraycopy(mDurations, 0, durations, first, mCount - first);
+        return mCount;
+    }
+
+    /**
+     * Encodes images copied by copyTo() into an animated GIF or APNG.
+     *
+     * @param fps the number of frames per second in the emulation.
+     * @return false if the file can't be written.
+     */
+    public static boolean encode(byte[] images, int[] durations, int count, int frameSize,
+            MovieEncoder encoder, File workFile, File file, int fps) {
+        if (count == 0) {
+            return false;
+        }
+        if (!encoder.start(workFile, fps)) {
+            return false;
+        }
+        byte[] bits = new byte[frameSize];
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(images, i * frameSize, bits, 0, frameSize);
+            encoder.addPackedFrame(bits);
+            for (int j = 1; j < durations[i]; j++) {
+                encoder.addRepeatedFrame();
+            }
+        }
+        return encoder.finish(file);
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private void extendTail(int frames) {
+        mDurations[(mHead + mCount - 1) % mMaxFrames] += frames;
+        mTotalFrames += frames;
+        while (mTotalFrames > mMaxFrames) {
+            int excess = mTotalFrames - mMaxFrames;
+            if (mCount > 1 && mDurations[mHead] <= excess) {
+                dropHead();
+            } else {
+                mDurations[mHead] -= excess; // trim the oldest image
+                mTotalFrames -= excess;
+            }
+        }
+    }
+
+    private void dropHead() {
+        mTotalFrames -= mDurations[mHead];
+        mHead = (mHead + 1) % mMaxFrames;
+        mCount--;
+    }
+
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.util.Arrays;
+
+/**
+ * Ring of machine snapshots within a memory budget.
+ * Each snapshot is stored as XOR difference from the previous one, compressed by run-length
+ * encoding of zero bytes. A keyframe (difference from zeros) is stored every keyInterval
+ * snapshots, and the oldest keyframe and its followers are dropped when the budget is over.
+ * All snapshots are stored in one array allocated when the budget is set, so pushing one
+ * costs no allocation on the emulation thread.
+ */
+public class RewindBuffer {
+
+    static final int MIN_ZERO_RUN = 4; // shorter runs are stored as literals
+
+    /*  Each entry in the ring starts with [data length][previous entry][next entry][is key]  */
+    private static final int HEADER_LENGTH = 0;
+    private static final int HEADER_PREV = 4;
+    private static final int HEADER_NEXT = 8;
+    private static final int HEADER_IS_KEY = 12;
+    private static final int HEADER_SIZE = 13;
+
+    private byte[]  mRing;
+    private int     mHead;      // offset of the oldest entry
+    private int     mNewest;    // offset of the newest entry
+    private int     mCount;
+    private int     mMaxBytes;
+    private int     mKeyInterval;
+    private int     mUsedBytes;
+    private byte[]  mCurrent;   // the newest snapshot
+    private byte[]  mScratch;
+
+    /*-----------------------------------------------------------------------*/
+
+    public RewindBuffer(int maxBytes, int keyInterval) {
+        mKeyInterval = Math.max(keyInterval, 1);
+        setMaxBytes(maxBytes);
+    }
+
+    public synchronized void setMaxBytes(int maxBytes) {
+        maxBytes = Math.max(maxBytes, 0);
+        if (maxBytes == mMaxBytes && mRing != null) {
+            return;
+        }
+        mMaxBytes = maxBytes;
+        mRing = new byte[maxBytes];
+        clear();
+    }
+
+    public synchronized void clear() {
+        mHead = 0;
+        mNewest = 0;
+        mCount = 0;
+        mUsedBytes = 0;
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    public synchronized int getUsedBytes() {
+        return mUsedBytes;
+    }
+
+    /**
+     * Appends a snapshot as the newest one. The oldest snapshots are dropped to make room.
+     */
+    public synchronized void push(byte[] state) {
+        int length = state.length;
+        if (mCurrent == null || mCurrent.length != length) {
+            clear();
+            mCurrent = new byte[length];
+            mScratch = new byte[length + length / MIN_ZERO_RUN * 2 + 16];
+        }
+        boolean isKey = (getDistanceFromKey() >= mKeyInterval);
+        int encodedLength = encode(state, (isKey) ? null : mCurrent, mScratch);
+        int offset;
+        while ((offset = allocate(HEADER_SIZE + encodedLength)) < 0) {
+            if (!dropOldestGroup()) {
+                /*  Even the newest group doesn't leave room, so start over with a keyframe  */
+                clear();
+                if (!isKey) {
+                    isKey = true;
+                    encodedLength = encode(state, null, mScratch);
+                }
+                if (HEADER_SIZE + encodedLength > mRing.length) {
+                    return;
+                }
+            }
+        }
+        putInt(offset + HEADER_LENGTH, encodedLength);
+        putInt(offset + HEADER_PREV, mNewest);
+        mRing[offset + HEADER_IS_KEY] = (byte) ((isKey) ? 1 : 0);
+        System.arraycopy(mScratch, 0, mRing, offset + HEADER_SIZE, encodedLength);
+        System.arraycopy(state, 0, mCurrent, 0, length);
+        if (mCount++ == 0) {
+            mHead = offset;
+        } else {
+            putInt(mNewest + HEADER_NEXT, offset);
+        }
+        mNewest = offset;
+        mUsedBytes += HEADER_SIZE + encodedLength;
+    }
+
+    /**
+     * Removes the newest snapshot and copies it into the specified array.
+     *
+     * @return false if the buffer is empty.
+     */
+    public synchronized boolean pop(byte[] state) {
+        if (mCount == 0 || state.length != mCurrent.length) {
+            return false;
+        }
+        System.arraycopy(mCurrent, 0, state, 0, state.length);
+        int entry = mNewest;
+        mUsedBytes -= HEADER_SIZE + getInt(entry + HEADER_LENGTH);
+        if (--mCount == 0) {
+            clear();
+            return true;
+        }
+        mNewest = getInt(entry + HEADER_PREV);
+        if (!isKey(entry)) {
+            applyEntry(entry, mCurrent);
+        } else {
+            /*  Rebuild the previous snapshot from the previous keyframe  */
+            int key = mNewest;
+            int pos = mCount - 1;
+            while (pos > 0 && !isKey(key)) {
+                key = getInt(key + HEADER_PREV);
+                pos--;
+            }
+            if (!isKey(key)) {
+                clear();
+                return true;
+            }
+            Arrays.fill(mCurrent, (byte) 0);
+            while (true) {
+                applyEntry(key, mCurrent);
+                if (key == mNewest) {
+                    break;
+                }
+                key = getInt(key + HEADER_NEXT);
+            }
+        }
+        return true;
+    }
+
+    /*-----------------------------------------------------------------------*/
+
+    private int getDistanceFromKey() {
+        int entry = mNewest;
+        for (int distance = 1; distance <= mCount; distance++) {
+            if (isKey(entry)) {
+                return distance;
+            }
+            entry = getInt(entry + HEADER_PREV);
+        }
+        return mKeyInterval; // no keyframe yet
+    }
+
+    /**
+     * Finds room for an entry after the newest one. Entries aren't split at the end of the
+     * ring, and each one has a header at least so that a full ring can be told from an empty one.
+     *
+     * @return the offset in the ring, or -1 if there's no room.
+     */
+    private int allocate(int size) {
+        if (mCount == 0) {
+            return (size <= mRing.length) ? 0 : -1;
+        }
+        int tail = mNewest + HEADER_SIZE + getInt(mNewest + HEADER_LENGTH);
+        if (mNewest >= mHead) {
+            if (size <= mRing.length - tail) {
+                return tail;
+            }
+            return (size <= mHead) ? 0 : -1;
+        }
+        return (size <= mHead - tail) ? tail : -1;
+    }
+
+    /**
+     * Drops the oldest keyframe and its followers.
+     *
+     * @return false if only the newest group is left.
+     */
+    private boolean dropOldestGroup() {
+        int entry = mHead;
+        int nextKey = 0;
+        do {
+            if (entry == mNewest) {
+                return false;
+            }
+            entry = getInt(entry + HEADER_NEXT);
+            nextKey++;
+        } while (!isKey(entry));
+        for (int pos = 0; pos < nextKey; pos++) {
+            mUsedBytes -= HEADER_SIZE + getInt(mHead + HEADER_LENGTH);
+            mHead = getInt(mHead + HEADER_NEXT);
+        }
+        mCount -= nextKey;
+        return true;
+    }
+
+    private boolean isKey(int entry) {
+        return mRing[entry + HEADER_IS_KEY] != 0;
+    }
+
+    private void applyEntry(int entry, byte[] target) {
+        applyXor(mRing, entry + HEADER_SIZE, getInt(entry + HEADER_LENGTH), target);
+    }
+
+    private int getInt(int pos) {
+        return (mRing[pos] & 0xFF) | (mRing[pos + 1] & 0xFF) << 8
+                | (mRing[pos + 2] & 0xFF) << 16 | mRing[pos + 3] << 24;
+    }
+
+    private void putInt(int pos, int value) {
+        mRing[pos] = (byte) value;
+        mRing[pos + 1] = (byte) (value >> 8);
+        mRing[pos + 2] = (byte) (value >> 16);
+        mRing[pos + 3] = (byte) (value >> 24);
+    }
+
+    /**
+     * Encodes (state XOR base) as a sequence of [zero run][literal length][literal bytes],
+     * where both lengths are varints. Trailing zeros are omitted.
+     * The destination needs (length + length / MIN_ZERO_RUN * 2 + 16) bytes at most.
+     */
+    static int encode(byte[] state, byte[] base, byte[] dst) {
+        int length = state.length;
+        int pos = 0;
+        int i = 0;
+        while (true) {
+            int zeroStart = i;
+            while (i < length && state[i] == ((base == null) ? 0 : base[i])) {
+                i++;
+            }
+            if (i >= length) {
+                break;
+            }
+            int literalStart = i;
+            int literalEnd = i;
+            while (i < length && i - literalEnd < MIN_ZERO_RUN) {
+                if (state[i] != ((base == null) ? 0 : base[i])) {
+                    literalEnd = i + 1;
+                }
+                i++;
+            }
+            i = literalEnd;
+            pos = putVarint(dst, pos, literalStart - zeroStart);
+            pos = putVarint(dst, pos, literalEnd - literalStart);
+            for (int j = literalStart; j < literalEnd; j++) {
+                dst[pos++] = (byte) ((base == null) ? state[j] : state[j] ^ base[j]);
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Applies the data made by encode() to the target by XOR.
+     */
+    static void applyXor(byte[] src, int pos, int length, byte[] target) {
+        int srcEnd = pos + length;
+        int offset = 0;
+        while (pos < srcEnd) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = src[pos++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            offset += value;
+            value = 0;
+            shift = 0;
+            do {
+                b = src[pos++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            for (int end = offset + value; offset < end; offset++) {
+                target[offset] ^= src[pos++];
+            }
+        }
+    }
+
+    private static int putVarint(byte[] dst, int pos, int value) {
+        while (value >= 0x80) {
+            dst[pos++] = (byte) (value | 0x80);
+            value >>>= 7;
+        }
+        dst[pos++] = (byte) value;
+        return pos;
+    }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2018 OBONO
+ * http://d.hatena.ne.jp/OBONO/
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.obnsoft.arduboyemu;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands the latest frame from one producer thread to one consumer thread without locks.
+ * The producer fills the back buffer and publishes it, and the consumer takes the latest
+ * published one as the front buffer. Neither waits for the other, and frames published
+ * while the consumer is busy are skipped.
+ */
+public class TripleBuffer<T> {
+
+    private static final int BACK_SHIFT     = 0;
+    private static final int MIDDLE_SHIFT   = 2;
+    private static final int FRONT_SHIFT    = 4;
+    private static final int INDEX_MASK     = 3;
+    private static final int FRESH          = 1 << 6; // middle is newer than front
+
+    private final Object[]  mBuffers;
+    private final AtomicInteger mState = new AtomicInteger(
+            0 << BACK_SHIFT | 1 << MIDDLE_SHIFT | 2 << FRONT_SHIFT);
+
+    /*-----------------------------------------------------------------------*/
+
+    public TripleBuffer(T buffer1, T buffer2, T buffer3) {
+        mBuffers = new Object[] { buffer1, buffer2, buffer3 };
+    }
+
+    /**
+     * @return the buffer which the producer fills next.
+     */
+    public T getBackBuffer() {
+        return getBuffer(mState.get() >> BACK_SHIFT);
+    }
+
+    /**
+     * Makes the back buffer the latest frame, and gets another back buffer.
+     */
+    public void publish() {
+        int state, next;
+        do {
+            state = mState.get();
+            next = (state & INDEX_MASK << FRONT_SHIFT) | FRESH
+                    | (state >> BACK_SHIFT & INDEX_MASK) << MIDDLE_SHIFT
+                    | (state >> MIDDLE_SHIFT & INDEX_MASK) << BACK_SHIFT;
+        } while (!mState.compareAndSet(state, next));
+    }
+
+    /**
+     * Takes the latest frame if a new one has been published.
+     *
+     * @return the front buffer, which the consumer may use until the next call.
+     */
+    public T acquire() {
+        int state = mState.get();
+        while ((state & FRESH) != 0) {
+            int next = (state & INDEX_MASK << BACK_SHIFT)
+                    | (state >> FRONT_SHIFT & INDEX_MASK) << MIDDLE_SHIFT
+                    | (state >> MIDDLE_SHIFT & INDEX_MASK) << FRONT_SHIFT;
+            if (mState.compareAndSet(state, next)) {
+                state = next;
+                break;
+            }
+            state = mState.get();
+        }
+        return getBuffer(state >> FRONT_SHIFT);
+    }
+
+    /**
+     * @return true if a frame has been published since the last acquire().
+     */
+    public boolean isFresh() {
+        return (mState.get() & FRESH) != 0;
+    }
+
+    /**
+     * @return the buffer at the index from 0 to 2 regardless of its role.
+     */
+    public T getBuffer(int index) {
+        @SuppressWarnings("unchecked")
+        T buffer = (T) mBuffers[index & INDEX_MASK];
+        return buffer;
+    }
+
+}